@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2015-present, osfans
+ * waxaca@163.com https://github.com/osfans
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.osfans.trime;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.LruCache;
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 進程內共用的背景圖片
+ *
+ * <p>以文件路徑和修改時間爲鍵，每個文件只解碼一次，並按用到的最大尺寸縮小。總大小超過可用內存的1/8時移除最久未用的圖片。
+ */
+public class BitmapCache {
+  private static class Entry {
+    final BitmapDrawable drawable;
+    final int sampleSize;
+
+    Entry(BitmapDrawable drawable, int sampleSize) {
+      this.drawable = drawable;
+      this.sampleSize = sampleSize;
+    }
+  }
+
+  private static final LruCache<String, Entry> sEntries =
+      new LruCache<String, Entry>((int) (Runtime.getRuntime().maxMemory() / 1024 / 8)) {
+        @Override
+        protected int sizeOf(String key, Entry e) {
+          return e.drawable.getBitmap().getByteCount() / 1024;
+        }
+      };
+  /** 圖片的原始寬高，避免重複讀取文件頭 */
+  private static final Map<String, int[]> sBounds = new HashMap<String, int[]>();
+
+  /**
+   * 獲得圖片
+   *
+   * @param file 圖片文件
+   * @param reqWidth 需要的寬度，不大於0時不限
+   * @param reqHeight 需要的高度，不大於0時不限
+   * @return 共用圖片的新Drawable，可單獨修改透明度等狀態，文件不存在或無法解碼時返回null
+   */
+  public static synchronized Drawable get(File file, int reqWidth, int reqHeight) {
+    if (!file.isFile()) return null;
+    String key = file.getPath() + "@" + file.lastModified();
+    int[] bounds = sBounds.get(key);
+    if (bounds == null) {
+      BitmapFactory.Options options = new BitmapFactory.Options();
+      options.inJustDecodeBounds = true;
+      BitmapFactory.decodeFile(file.getPath(), options);
+      if (options.outWidth <= 0 || options.outHeight <= 0) return null;
+      bounds = new int[] {options.outWidth, options.outHeight};
+      sBounds.put(key, bounds);
+    }
+    int sampleSize = getSampleSize(bounds[0], bounds[1], reqWidth, reqHeight);
+    Entry e = sEntries.get(key);
+    if (e == null || e.sampleSize > sampleSize) {
+      BitmapFactory.Options options = new BitmapFactory.Options();
+      options.inSampleSize = sampleSize;
+      Bitmap bitmap = BitmapFactory.decodeFile(file.getPath(), options);
+      if (bitmap == null) return null;
+      e = new Entry(new BitmapDrawable(bitmap), sampleSize);
+      sEntries.put(key, e);
+    }
+    return e.drawable.getConstantState().newDrawable().mutate();
+  }
+
+  /** 縮小後仍不小於需要的寬高的最大縮小倍數 */
+  private static int getSampleSize(int width, int height, int reqWidth, int reqHeight) {
+    int sampleSize = 1;
+    if (reqWidth <= 0 && reqHeight <= 0) return sampleSize;
+    while ((reqWidth <= 0 || width / (sampleSize * 2) >= reqWidth)
+        && (reqHeight <= 0 || height / (sampleSize * 2) >= reqHeight)) {
+      sampleSize *= 2;
+    }
+    return sampleSize;
+  }
+
+  /** 清空，內存不足時調用，已在使用的圖片不受影響 */
+  public static synchronized void trim() {
+    sEntries.evictAll();
+    sBounds.clear();
+  }
+}
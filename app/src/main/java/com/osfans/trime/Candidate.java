@@ -46,6 +46,7 @@ public class Candidate extends View {
   private Rime.RimeCandidate[] candidates;
   private int num_candidates;
   private int start_num = 0;
+  private int generation = -1;
 
   private Drawable candidateHighlight, candidateSeparator;
   private Paint paintCandidate, paintSymbol, paintComment;
@@ -58,22 +59,24 @@ public class Candidate extends View {
   private Rect candidateRect[] = new Rect[MAX_CANDIDATE_COUNT + 2];
 
   public void reset(Context context) {
+    generation = -1;
     Config config = Config.get(context);
     candidateHighlight = new PaintDrawable(config.getColor("hilited_candidate_back_color"));
     //((PaintDrawable) candidateHighlight).setCornerRadius(config.getFloat("layout/round_corner"));
     candidateSeparator = new PaintDrawable(config.getColor("candidate_separator_color"));
-    candidate_spacing = config.getPixel("candidate_spacing");
-    candidate_padding = config.getPixel("candidate_padding");
+    StyleSnapshot style = config.getStyle();
+    candidate_spacing = style.candidate_spacing;
+    candidate_padding = style.candidate_padding;
 
     candidate_text_color = config.getColor("candidate_text_color");
     comment_text_color = config.getColor("comment_text_color");
     hilited_candidate_text_color = config.getColor("hilited_candidate_text_color");
     hilited_comment_text_color = config.getColor("hilited_comment_text_color");
 
-    int candidate_text_size = config.getPixel("candidate_text_size");
-    int comment_text_size = config.getPixel("comment_text_size");
-    candidate_view_height = config.getPixel("candidate_view_height");
-    comment_height = config.getPixel("comment_height");
+    int candidate_text_size = style.candidate_text_size;
+    int comment_text_size = style.comment_text_size;
+    candidate_view_height = style.candidate_view_height;
+    comment_height = style.comment_height;
 
     tfCandidate = config.getFont("candidate_font");
     tfLatin = config.getFont("latin_font");
@@ -88,8 +91,8 @@ public class Candidate extends View {
     paintComment.setTextSize(comment_text_size);
     paintComment.setTypeface(tfComment);
 
-    comment_on_top = config.getBoolean("comment_on_top");
-    candidate_use_cursor = config.getBoolean("candidate_use_cursor");
+    comment_on_top = style.comment_on_top;
+    candidate_use_cursor = style.candidate_use_cursor;
     invalidate();
   }
 
@@ -128,6 +131,8 @@ public class Candidate extends View {
    * @param start 候選的起始編號
    */
   public void setText(int start) {
+    if (start == start_num && generation == Rime.getGeneration()) return; //候選未變
+    generation = Rime.getGeneration();
     start_num = start;
     removeHighlight();
     updateCandidateWidth();
@@ -382,7 +387,7 @@ public class Candidate extends View {
 
   private String getCandidate(int i) {
     String s = null;
-    if (candidates != null && i >= 0) s = candidates[i + start_num].text;
+    if (candidates != null && i >= 0) s = candidates[i + start_num].getText();
     else if (i == -4 && Rime.hasLeft()) s = "◀";
     else if (i == -5 && Rime.hasRight()) s = "▶";
     return s;
@@ -390,7 +395,7 @@ public class Candidate extends View {
 
   private String getComment(int i) {
     String s = null;
-    if (candidates != null && i >= 0) s = candidates[i + start_num].comment;
+    if (candidates != null && i >= 0) s = candidates[i + start_num].getComment();
     return s;
   }
 
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2015-present, osfans
+ * waxaca@163.com https://github.com/osfans
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.osfans.trime;
+
+import android.graphics.Color;
+import android.graphics.drawable.Drawable;
+import android.graphics.drawable.GradientDrawable;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 解析好的配色方案
+ *
+ * <p>建立時沿fallback_colors找到每個顏色鍵的取值並轉成顏色，之後查詢只是查表。圖片或顏色的Drawable首次使用時建立，以後共用同一份圖片。
+ */
+public class ColorScheme {
+  private final Config config;
+  private final String name;
+  private final Map<String, Integer> index;
+  /** 配色中的取值，配色中沒有時取default配色的同名值 */
+  private final Object[] values;
+  /** 取值是否來自default配色 */
+  private final boolean[] fromDefault;
+  private final Integer[] colors;
+  private final Drawable.ConstantState[] drawables;
+  private final boolean[] loaded;
+
+  /**
+   * @param config 用於讀取圖片
+   * @param name 配色名
+   * @param scheme 配色
+   * @param defaults default配色，沒有時爲null
+   * @param fallbackColors 顏色鍵的後備鍵
+   */
+  ColorScheme(
+      Config config,
+      String name,
+      Map<String, Object> scheme,
+      Map<String, Object> defaults,
+      Map<String, String> fallbackColors) {
+    this.config = config;
+    this.name = name;
+    if (scheme == null) scheme = new HashMap<String, Object>();
+    if (defaults == null) defaults = new HashMap<String, Object>();
+    if (fallbackColors == null) fallbackColors = new HashMap<String, String>();
+    Set<String> keys = new HashSet<String>(scheme.keySet());
+    keys.addAll(defaults.keySet());
+    keys.addAll(fallbackColors.keySet());
+    int n = keys.size();
+    index = new HashMap<String, Integer>(n * 4 / 3 + 1);
+    values = new Object[n];
+    fromDefault = new boolean[n];
+    colors = new Integer[n];
+    drawables = new Drawable.ConstantState[n];
+    loaded = new boolean[n];
+    int i = 0;
+    Set<String> visited = new HashSet<String>();
+    for (String key : keys) {
+      Object o = scheme.get(key);
+      String fallbackKey = key;
+      visited.clear();
+      while (o == null && fallbackColors.containsKey(fallbackKey) && visited.add(fallbackKey)) {
+        fallbackKey = fallbackColors.get(fallbackKey);
+        o = scheme.get(fallbackKey);
+      }
+      if (o == null) {
+        o = defaults.get(key);
+        fromDefault[i] = o != null;
+      }
+      values[i] = o;
+      if (o != null) colors[i] = parseColor(o.toString());
+      index.put(key, i);
+      i++;
+    }
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /** 顏色，配色中沒有時取default配色 */
+  public Integer getColor(String key) {
+    Integer i = index.get(key);
+    return i == null ? null : colors[i];
+  }
+
+  /** 當前配色中的顏色，不取default配色 */
+  public Integer getCurrentColor(String key) {
+    Integer i = index.get(key);
+    return i == null || fromDefault[i] ? null : colors[i];
+  }
+
+  /** 顏色或圖片，配色中沒有時取default配色 */
+  public Drawable getDrawable(String key) {
+    Integer i = index.get(key);
+    return i == null ? null : getDrawable(i);
+  }
+
+  /** 當前配色中的顏色或圖片，不取default配色 */
+  public Drawable getCurrentDrawable(String key) {
+    Integer i = index.get(key);
+    return i == null || fromDefault[i] ? null : getDrawable(i);
+  }
+
+  /** 每次返回新的Drawable，可各自設置邊界、圓角和透明度，圖片仍然共用 */
+  private Drawable getDrawable(int i) {
+    if (!loaded[i]) {
+      loaded[i] = true;
+      Drawable d = null;
+      if (colors[i] != null) {
+        GradientDrawable gd = new GradientDrawable();
+        gd.setColor(colors[i]);
+        d = gd;
+      } else if (values[i] != null) {
+        d = config.drawableObject(values[i]);
+      }
+      if (d != null) drawables[i] = d.getConstantState();
+    }
+    return drawables[i] == null ? null : drawables[i].newDrawable().mutate();
+  }
+
+  /**
+   * 解析顏色，支持「#RRGGBB」「#AARRGGBB」「0xRRGGBB」「0xAARRGGBB」和顏色名
+   *
+   * @param s 顏色
+   * @return 顏色值，圖片名或無法解析時返回null
+   */
+  public static Integer parseColor(String s) {
+    if (s == null || s.isEmpty() || s.indexOf('.') >= 0) return null; //picture name
+    int n = s.length();
+    int start = 0;
+    if (n > 1 && s.charAt(0) == '#') start = 1;
+    else if (n > 2 && s.charAt(0) == '0' && (s.charAt(1) == 'x' || s.charAt(1) == 'X')) start = 2;
+    int digits = n - start;
+    if (start > 0 && (digits == 6 || digits == 8 || (start == 2 && digits == 7))) {
+      long color = 0;
+      for (int i = start; i < n; i++) {
+        int d = Character.digit(s.charAt(i), 16);
+        if (d < 0) return null;
+        color = (color << 4) | d;
+      }
+      if (digits == 6) color |= 0xFF000000L;
+      return (int) color;
+    }
+    if (start == 2 && digits < 6) return parseShortColor(s);
+    try {
+      return Color.parseColor(s);
+    } catch (RuntimeException e) { //不是顏色，如author等非顏色鍵
+      return null;
+    }
+  }
+
+  /** 「0x」後不足6位的寫法，沿用原來的解析方式 */
+  private static Integer parseShortColor(String s) {
+    try {
+      s = s.toLowerCase(Locale.getDefault());
+      if (s.length() <= 4) s = String.format("#%02x000000", Long.decode(s.substring(2))); //0xAA
+      else s = String.format("#%06x", Long.decode(s.substring(2)));
+      return Color.parseColor(s);
+    } catch (Exception e) {
+      return null;
+    }
+  }
+}
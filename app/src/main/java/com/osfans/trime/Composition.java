@@ -65,6 +65,7 @@ public class Composition extends TextView {
   private float mDx, mDy;
   private int mCurrentX, mCurrentY;
   private int candidate_num;
+  private int generation = -1, window_length, window_start_num;
   private boolean all_phrases;
 
   private class CompositionSpan extends UnderlineSpan {
@@ -196,14 +197,16 @@ public class Composition extends TextView {
   }
 
   public void reset(Context context) {
+    generation = -1;
     Config config = Config.get(context);
-    components = (List<Map<String, Object>>) config.getValue("window");
-    if (config.hasKey("layout/max_entries")) max_entries = config.getInt("layout/max_entries");
-    candidate_use_cursor = config.getBoolean("candidate_use_cursor");
-    text_size = config.getPixel("text_size");
-    candidate_text_size = config.getPixel("candidate_text_size");
-    comment_text_size = config.getPixel("comment_text_size");
-    label_text_size = config.getPixel("label_text_size");
+    StyleSnapshot style = config.getStyle();
+    components = style.window;
+    if (style.has_layout_max_entries) max_entries = style.layout_max_entries;
+    candidate_use_cursor = style.candidate_use_cursor;
+    text_size = style.text_size;
+    candidate_text_size = style.candidate_text_size;
+    comment_text_size = style.comment_text_size;
+    label_text_size = style.label_text_size;
 
     text_color = config.getColor("text_color");
     candidate_text_color = config.getColor("candidate_text_color");
@@ -217,25 +220,25 @@ public class Composition extends TextView {
     hilited_back_color = config.getColor("hilited_back_color");
     hilited_candidate_back_color = config.getColor("hilited_candidate_back_color");
 
-    key_text_size = config.getPixel("key_text_size");
+    key_text_size = style.key_text_size;
     key_text_color = config.getColor("key_text_color");
     key_back_color = config.getColor("key_back_color");
 
-    float line_spacing_multiplier = config.getFloat("layout/line_spacing_multiplier");
+    float line_spacing_multiplier = style.layout_line_spacing_multiplier;
     if (line_spacing_multiplier == 0f) line_spacing_multiplier = 1f;
-    setLineSpacing(config.getFloat("layout/line_spacing"), line_spacing_multiplier);
-    setMinWidth(config.getPixel("layout/min_width"));
-    setMinHeight(config.getPixel("layout/min_height"));
-    setMaxWidth(config.getPixel("layout/max_width"));
-    setMaxHeight(config.getPixel("layout/max_height"));
+    setLineSpacing(style.layout_line_spacing, line_spacing_multiplier);
+    setMinWidth(style.layout_min_width);
+    setMinHeight(style.layout_min_height);
+    setMaxWidth(style.layout_max_width);
+    setMaxHeight(style.layout_max_height);
     int margin_x, margin_y;
-    margin_x = config.getPixel("layout/margin_x");
-    margin_y = config.getPixel("layout/margin_y");
+    margin_x = style.layout_margin_x;
+    margin_y = style.layout_margin_y;
     setPadding(margin_x, margin_y, margin_x, margin_y);
-    max_length = config.getInt("layout/max_length");
-    sticky_lines = config.getInt("layout/sticky_lines");
-    movable = config.getString("layout/movable");
-    all_phrases = config.getBoolean("layout/all_phrases");
+    max_length = style.layout_max_length;
+    sticky_lines = style.layout_sticky_lines;
+    movable = style.layout_movable;
+    all_phrases = style.layout_all_phrases;
     tfLabel = config.getFont("label_font");
     tfText = config.getFont("text_font");
     tfCandidate = config.getFont("candidate_font");
@@ -311,7 +314,7 @@ public class Composition extends TextView {
     int i = -1;
     candidate_num = 0;
     for (Rime.RimeCandidate o : candidates) {
-      String cand = o.text;
+      String cand = o.getText();
       if (Function.isEmpty(cand)) cand = "";
       i++;
       if (candidate_num >= max_entries) {
@@ -373,7 +376,7 @@ public class Composition extends TextView {
           end,
           span);
       ss.setSpan(new AbsoluteSizeSpan(candidate_text_size), start, end, span);
-      String comment = o.comment;
+      String comment = o.getComment();
       if (show_comment && !Function.isEmpty(comment_format) && !Function.isEmpty(comment)) {
         comment = String.format(comment_format, comment);
         start = ss.length();
@@ -408,7 +411,7 @@ public class Composition extends TextView {
       if (when.contentEquals("has_menu") && !Rime.hasMenu()) return;
     }
     String label;
-    Event e = new Event(Config.getString(m, "click"));
+    Event e = Event.get(Config.getString(m, "click"));
     if (m.containsKey("label")) label = Config.getString(m, "label");
     else label = e.getLabel();
     int start, end;
@@ -454,6 +457,7 @@ public class Composition extends TextView {
 
   public int setWindow(int length) {
     if (getVisibility() != View.VISIBLE) return 0;
+    if (length == window_length && generation == Rime.getGeneration()) return window_start_num;
     Rime.RimeComposition r = Rime.getComposition();
     if (r == null) return 0;
     String s = r.getText();
@@ -470,6 +474,9 @@ public class Composition extends TextView {
     if (candidate_num > 0 || ss.toString().contains("\n")) setSingleLine(false); //設置單行
     setText(ss);
     setMovementMethod(LinkMovementMethod.getInstance());
+    generation = Rime.getGeneration();
+    window_length = length;
+    window_start_num = start_num;
     return start_num;
   }
 }
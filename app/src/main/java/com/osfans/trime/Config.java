@@ -23,13 +23,11 @@ import android.content.SharedPreferences;
 import android.content.res.AssetManager;
 import android.content.res.Configuration;
 import android.content.res.Resources;
-import android.graphics.BitmapFactory;
-import android.graphics.Color;
 import android.graphics.Typeface;
-import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.GradientDrawable;
 import android.os.SystemClock;
+import android.util.DisplayMetrics;
 import android.util.TypedValue;
 
 import com.osfans.trime.enums.InlineModeType;
@@ -42,8 +40,9 @@ import java.io.FilenameFilter;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 
 /** 解析YAML配置文件 */
@@ -57,13 +56,26 @@ public class Config {
   private Map<String, Object> mStyle, mDefaultStyle;
   private String themeName;
   private static String defaultName = "trime";
+  /** 存入主題快照的節點 */
+  private static final String[] THEME_KEYS = {
+    "android_keys", "style", "fallback_colors", "preset_keys", "preset_color_schemes", "preset_keyboards"
+  };
   private String schema_id;
+  private long themeKey;
+  private StyleSnapshot mStyleSnapshot;
+  /** 各主題與方案組合的style，方案切換時不必重建 */
+  private static final Map<String, StyleSnapshot> sStyleSnapshots =
+      new HashMap<String, StyleSnapshot>();
+
+  /** 應用版本號，計入主題快照的鍵 */
+  private final int versionCode;
 
   private static Config self = null;
   private SharedPreferences mPref;
 
   private Map<String, String> fallbackColors;
   private Map presetColorSchemes, presetKeyboards;
+  private ColorScheme mColorScheme, mLastColorScheme;
   private boolean portrait = true;
   private boolean landscape = false;
 
@@ -77,6 +89,7 @@ public class Config {
     }
     self = this;
     mPref = Function.getPref(context);
+    versionCode = Function.getVersionCode(context);
     userDataDir = context.getString(R.string.default_user_data_dir);
     sharedDataDir = context.getString(R.string.default_shared_data_dir);
     themeName = mPref.getString("pref_selected_theme", "trime");
@@ -237,7 +250,70 @@ public class Config {
   private void deployTheme(Context context) {
     if (getUserDataDir().contentEquals(getSharedDataDir())) return; //相同文件夾不部署主題
     String[] configs = get(context).getThemeKeys(context, false);
-    for (String config: configs) Rime.deploy_config_file(config, "config_version");
+    for (String config: configs) {
+      if (isOutdated(config)) Rime.deploy_config_file(config, "config_version");
+    }
+  }
+
+  /** 配置文件及其補丁在共享與用戶文件夾中的源文件 */
+  private File[] getSources(String file) {
+    String custom = file.replace(".yaml", ".custom.yaml");
+    return new File[] {
+      new File(getSharedDataDir(), file),
+      new File(getUserDataDir(), file),
+      new File(getSharedDataDir(), custom),
+      new File(getUserDataDir(), custom)
+    };
+  }
+
+  private File getBuildFile(String file) {
+    return new File(new File(getUserDataDir(), "build"), file);
+  }
+
+  /** 部署結果不存在或比源文件舊時需要重新部署 */
+  private boolean isOutdated(String file) {
+    File build = getBuildFile(file);
+    if (!build.exists()) return true;
+    long time = build.lastModified();
+    for (File f : getSources(file)) if (f.lastModified() > time) return true;
+    return false;
+  }
+
+  /**
+   * 讀取主題中用到的節點
+   *
+   * <p>以主題及默認主題源文件、部署結果和應用版本的校驗值爲鍵保存快照，都未變時直接讀取快照，不再部署和經JNI讀取。
+   *
+   * @param name 主題名
+   * @return 主題不存在時返回null
+   */
+  private Map<String, Object> loadTheme(String name) {
+    String file = name + ".yaml";
+    List<File> files = new ArrayList<File>(Arrays.asList(getSources(file)));
+    if (!name.contentEquals(defaultName)) { //主題常引用默認主題
+      files.addAll(Arrays.asList(getSources(defaultName + ".yaml")));
+    }
+    files.add(getBuildFile(file)); //部署結果還取決於Rime版本，與源文件一起計入
+    File[] sources = files.toArray(new File[files.size()]);
+    String extra = name + "@" + versionCode; //新版本可能讀取不同的節點
+    File snapshot = getBuildFile(name + ".snapshot");
+    long key = getBuildFile(file).exists() ? ThemeSnapshot.hash(sources, extra) : 0;
+    Object o = ThemeSnapshot.load(snapshot, key);
+    if (o instanceof Map) {
+      themeKey = key;
+      return (Map<String, Object>) o;
+    }
+    Rime.deploy_config_file(file, "config_version");
+    Rime.closeConfig(name); //重新部署後讀取新配置
+    themeKey = key = ThemeSnapshot.hash(sources, extra);
+    Map<String, Object> m = Rime.getConfigMap(name, "");
+    if (m == null) return null;
+    Map<String, Object> theme = new HashMap<String, Object>();
+    for (String k : THEME_KEYS) theme.put(k, m.get(k));
+    //快照由JNI直接寫出，不必讀出全部節點，本次仍按需讀取
+    long handle = Rime.getConfigHandle(name);
+    ThemeSnapshot.save(snapshot, key, Rime.config_get_snapshot(handle, THEME_KEYS));
+    return theme;
   }
 
   public void setTheme(String theme) {
@@ -250,11 +326,10 @@ public class Config {
 
   private void init() {
     try {
-      Rime.deploy_config_file(themeName + ".yaml", "config_version");
-      Map<String, Object> m = Rime.config_get_map(themeName, "");
+      Map<String, Object> m = loadTheme(themeName);
       if (m == null) {
         themeName = defaultName;
-        m = Rime.config_get_map(themeName, "");
+        m = loadTheme(themeName);
       }
       Map mk = (Map<String, Object>) m.get("android_keys");
       mDefaultStyle = (Map<String, Object>) m.get("style");
@@ -265,10 +340,17 @@ public class Config {
       if (Function.isEmpty(Key.getSymbols()))
         Key.setSymbols("ABCDEFGHIJKLMNOPQRSTUVWXYZ!\"$%&:<>?^_{|}~");
       Key.presetKeys = (Map<String, Map>) m.get("preset_keys");
+      Key.initKeyCodes();
+      Event.clearCache(); //按鍵事件隨主題與方案重建
       presetColorSchemes = (Map<String, Object>) m.get("preset_color_schemes");
       presetKeyboards = (Map<String, Object>) m.get("preset_keyboards");
+      mLastColorScheme = null;
       Rime.setShowSwitches(getShowSwitches());
       reset();
+      String scheme = resolveColorScheme(); //選定的配色不存在時，記下實際使用的配色
+      if (presetColorSchemes != null
+          && presetColorSchemes.containsKey(scheme)
+          && !scheme.equals(getColorScheme())) saveColorScheme(scheme);
     } catch (Exception e) {
       e.printStackTrace();
       setTheme(defaultName);
@@ -279,6 +361,40 @@ public class Config {
     schema_id = Rime.getSchemaId();
     if (schema_id != null)
       mStyle = (Map<String, Object>) Rime.schema_get_value(schema_id, "style");
+    mStyleSnapshot = null;
+    mLastColorScheme = mColorScheme;
+    mColorScheme = null;
+  }
+
+  /**
+   * 獲得當前主題與方案的style
+   *
+   * <p>以主題源文件的校驗值、方案及其style覆蓋內容爲鍵緩存，切換回用過的方案時直接復用。
+   */
+  public StyleSnapshot getStyle() {
+    if (mStyleSnapshot != null) return mStyleSnapshot;
+    String key = null;
+    if (themeKey != 0) {
+      key =
+          themeKey
+              + "/"
+              + themeName
+              + "/"
+              + schema_id
+              + "/"
+              + (mStyle == null ? 0 : mStyle.hashCode())
+              + "/"
+              + Resources.getSystem().getDisplayMetrics().scaledDensity;
+      mStyleSnapshot = sStyleSnapshots.get(key);
+    }
+    if (mStyleSnapshot == null) {
+      mStyleSnapshot = new StyleSnapshot(this);
+      if (key != null) {
+        if (sStyleSnapshots.size() >= 16) sStyleSnapshots.clear();
+        sStyleSnapshots.put(key, mStyleSnapshot);
+      }
+    }
+    return mStyleSnapshot;
   }
 
   private Object _getValue(String k1, String k2) {
@@ -377,7 +493,7 @@ public class Config {
     self = null;
   }
 
-  private static int getPixel(Float f) {
+  static int getPixel(Float f) {
     if (f == null) return 0;
     return (int)
         TypedValue.applyDimension(
@@ -403,35 +519,41 @@ public class Config {
     if (m.containsKey(k)) {
       Object o = m.get(k);
       String s = o.toString();
-      color = parseColor(s);
+      color = ColorScheme.parseColor(s);
       if (color == null)
-        color = get(context).getCurrentColor(s);
+        color = get(context).getColors().getCurrentColor(s);
     }
     return color;
   }
 
   public Integer getColor(String key) {
-    Object o = getColorObject(key);
-    if (o == null) {
-      o = ((Map<String, Object>) presetColorSchemes.get("default")).get(key);
-    }
-    if (o == null) return null;
-    return parseColor(o.toString());
+    return getColors().getColor(key);
   }
 
   public static Drawable getColorDrawable(Context context, Map m, String k) {
+    return getColorDrawable(context, m, k, 0, 0);
+  }
+
+  /**
+   * 獲得顏色或圖片
+   *
+   * @param width 圖片需要的最大寬度，寬高都不大於0時按屏幕大小
+   * @param height 圖片需要的最大高度，不大於0時不限
+   */
+  public static Drawable getColorDrawable(
+      Context context, Map m, String k, int width, int height) {
     if (m.containsKey(k)) {
       Object o = m.get(k);
       String s = o.toString();
-      Integer color = parseColor(s);
+      Integer color = ColorScheme.parseColor(s);
       if (color != null) {
         GradientDrawable gd = new GradientDrawable();
         gd.setColor(color);
         return gd;
       } else {
         Config config = get(context);
-        Drawable d = config.getCurrentColorDrawable(s);
-        if (d == null) d = config.drawableObject(o);
+        Drawable d = config.getColors().getCurrentDrawable(s);
+        if (d == null) d = config.drawableObject(o, width, height);
         return d;
       }
     }
@@ -510,56 +632,105 @@ public class Config {
     return o.toString();
   }
 
-  private Object getColorObject(String key) {
-    String scheme = getColorScheme();
-    if (!presetColorSchemes.containsKey(scheme)) scheme = getString("color_scheme"); //主題中指定的配色
-    if (!presetColorSchemes.containsKey(scheme)) scheme = "default"; //主題中的default配色
-    Map map = (Map<String, Object>) presetColorSchemes.get(scheme);
-    if (map == null) return null;
-    setColor(scheme);
-    Object o = map.get(key);
-    String fallbackKey = key;
-    while (o == null && fallbackColors.containsKey(fallbackKey)) {
-      fallbackKey = fallbackColors.get(fallbackKey);
-      o = map.get(fallbackKey);
+  /** 方案style中是否指定了此鍵 */
+  private boolean isSchemaStyle(String key) {
+    if (mStyle == null) return false;
+    String[] ss = key.split("/");
+    if (ss.length == 1) return mStyle.containsKey(ss[0]);
+    Object o = mStyle.get(ss[0]);
+    return ss.length == 2 && o instanceof Map && ((Map) o).containsKey(ss[1]);
+  }
+
+  /**
+   * 批量讀取style中的布爾值，缺省值與{@link #getBoolean(String)}一致
+   *
+   * <p>主題style未從快照讀取時經JNI按類型一次取回，只有方案style中指定的鍵才解析字符串。以下同。
+   */
+  public boolean[] getBooleans(String[] keys) {
+    boolean[] values = null;
+    if (mDefaultStyle instanceof ConfigMap) {
+      values = ((ConfigMap) mDefaultStyle).getBooleans(keys, true);
     }
-    return o;
+    boolean parse = values == null;
+    if (parse) values = new boolean[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      if (parse || isSchemaStyle(keys[i])) values[i] = getBoolean(keys[i]);
+    }
+    return values;
   }
 
-  private static Integer parseColor(String s) {
-    Integer color = null;
-    if (s.contains(".")) return color; //picture name
-    try {
-      s = s.toLowerCase(Locale.getDefault());
-      if (s.startsWith("0x")) {
-        if (s.length() == 3 || s.length() == 4) s = String.format("#%02x000000", Long.decode(s.substring(2))); //0xAA
-        else if (s.length() < 8) s = String.format("#%06x", Long.decode(s.substring(2)));
-        else if (s.length() == 9) s = "#0" + s.substring(2);
-      }
-      color = Color.parseColor(s.replace("0x", "#"));
-    } catch (Exception e) {
-      //Log.e(TAG, "unknown color " + s);
+  public int[] getInts(String[] keys) {
+    int[] values = null;
+    if (mDefaultStyle instanceof ConfigMap) values = ((ConfigMap) mDefaultStyle).getInts(keys, 0);
+    boolean parse = values == null;
+    if (parse) values = new int[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      if (parse || isSchemaStyle(keys[i])) values[i] = getInt(keys[i]);
     }
-    return color;
+    return values;
   }
 
-  public Integer getCurrentColor(String key) {
-    Object o = getColorObject(key);
-    if (o == null) return null;
-    return parseColor(o.toString());
+  public double[] getDoubles(String[] keys) {
+    double[] values = null;
+    if (mDefaultStyle instanceof ConfigMap) {
+      values = ((ConfigMap) mDefaultStyle).getDoubles(keys, 0d);
+    }
+    boolean parse = values == null;
+    if (parse) values = new double[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      if (parse || isSchemaStyle(keys[i])) values[i] = getDouble(keys[i]);
+    }
+    return values;
+  }
+
+  /**
+   * 獲得當前配色
+   *
+   * <p>依次取選定的配色、主題或方案style中指定的配色、default配色。方案改變時若配色不變則沿用上次解析的結果。
+   */
+  public ColorScheme getColors() {
+    if (mColorScheme != null) return mColorScheme;
+    String scheme = resolveColorScheme();
+    Map<String, Object> schemes =
+        presetColorSchemes == null ? new HashMap<String, Object>() : presetColorSchemes;
+    if (mLastColorScheme != null && mLastColorScheme.getName().equals(scheme)) {
+      mColorScheme = mLastColorScheme;
+    } else {
+      mColorScheme =
+          new ColorScheme(
+              this,
+              scheme,
+              (Map<String, Object>) schemes.get(scheme),
+              (Map<String, Object>) schemes.get("default"),
+              fallbackColors);
+    }
+    return mColorScheme;
   }
 
-  
+  /** 實際使用的配色名，只查找不保存 */
+  private String resolveColorScheme() {
+    String scheme = getColorScheme();
+    Map<String, Object> schemes = presetColorSchemes;
+    if (schemes == null) return "default";
+    if (!schemes.containsKey(scheme)) scheme = getString("color_scheme"); //主題中指定的配色
+    if (!schemes.containsKey(scheme)) scheme = "default"; //主題中的default配色
+    return scheme;
+  }
 
   public String getColorScheme() {
     return mPref.getString("pref_selected_color_scheme", "default");
   }
 
   public void setColor(String color) {
+    saveColorScheme(color);
+    mColorScheme = null;
+    //deployTheme();
+  }
+
+  private void saveColorScheme(String color) {
     SharedPreferences.Editor edit = mPref.edit();
     edit.putString("pref_selected_color_scheme", color);
     edit.apply();
-    //deployTheme();
   }
 
   public String[] getColorKeys() {
@@ -580,45 +751,43 @@ public class Config {
     return names;
   }
 
+  /**
+   * 獲得字體，同一字體文件在進程內只解析一次
+   *
+   * @param key 字體的配置項
+   * @return 字體
+   */
   public Typeface getFont(String key) {
     String name = getString(key);
-    if (name != null) {
-      File f = new File(getResDataDir("fonts"), name);
-      if (f.exists()) return Typeface.createFromFile(f);
-    }
+    if (!Function.isEmpty(name)) return FontCache.get(new File(getResDataDir("fonts"), name));
     return Typeface.DEFAULT;
   }
 
-  private Drawable drawableObject(Object o) {
+  Drawable drawableObject(Object o) {
+    return drawableObject(o, 0, 0);
+  }
+
+  /** 顏色或backgrounds目錄中的圖片，圖片縮小到不小於所需的寬高，寬高都不大於0時按屏幕大小 */
+  Drawable drawableObject(Object o, int width, int height) {
     if (o == null) return null;
     String name = o.toString();
-    Integer color = parseColor(name);
+    Integer color = ColorScheme.parseColor(name);
     if (color != null) {
       GradientDrawable gd = new GradientDrawable();
       gd.setColor(color);
       return gd;
-    } else {
-      String nameDirectory = getResDataDir("backgrounds");
-      name = new File(nameDirectory, name).getPath();
-      File f = new File(name);
-      if (f.exists()) {
-        return new BitmapDrawable(BitmapFactory.decodeFile(name));
-      }
     }
-    return null;
-  }
-
-  private Drawable getCurrentColorDrawable(String key) {
-    Object o = getColorObject(key);
-    return drawableObject(o);
+    String nameDirectory = getResDataDir("backgrounds");
+    if (width <= 0 && height <= 0) {
+      DisplayMetrics dm = Resources.getSystem().getDisplayMetrics();
+      width = dm.widthPixels;
+      height = dm.heightPixels;
+    }
+    return BitmapCache.get(new File(nameDirectory, name), width, height);
   }
 
   public Drawable getColorDrawable(String key) {
-    Object o = getColorObject(key);
-    if (o == null) {
-      o = ((Map<String, Object>) presetColorSchemes.get("default")).get(key);
-    }
-    return drawableObject(o);
+    return getColors().getDrawable(key);
   }
 
   public Drawable getDrawable(String key) {
@@ -641,7 +810,7 @@ public class Config {
   }
 
   public WindowsPositionType getWinPos() {
-    return WindowsPositionType.fromString(getString("layout/position"));
+    return WindowsPositionType.fromString(getStyle().layout_position);
   }
 
   public boolean isShowStatusIcon() {
@@ -673,7 +842,7 @@ public class Config {
   }
 
   public boolean getShowWindow() {
-    return mPref.getBoolean("show_window", true) && hasKey("window");
+    return mPref.getBoolean("show_window", true) && getStyle().has_window;
   }
 
   public boolean getSoftCursor() {
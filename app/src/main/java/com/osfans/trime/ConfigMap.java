@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2015-present, osfans
+ * waxaca@163.com https://github.com/osfans
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.osfans.trime;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 按需讀取的Rime配置節點
+ *
+ * <p>首次訪問時一次取回所有標量子節點，子節點爲Map時同樣延遲加載，列表則整體讀取。 鍵名含“/”時無法按路徑定位，改爲整體讀取本節點。讀不到的值也記下，不再重複調用JNI。數值可按類型批量讀取，不必解析字符串。
+ */
+public class ConfigMap extends AbstractMap<String, Object> {
+  private final String name;
+  private final String path;
+  private final Set<String> keys;
+  private Map<String, Object> values;
+
+  ConfigMap(String name, String path, String[] keys) {
+    this.name = name;
+    this.path = path;
+    this.keys = new LinkedHashSet<String>(Arrays.asList(keys));
+  }
+
+  private String getPath(String key) {
+    return path.length() == 0 ? key : path + "/" + key;
+  }
+
+  private String[] getPaths(String[] keys) {
+    String[] paths = new String[keys.length];
+    for (int i = 0; i < keys.length; i++) paths[i] = getPath(keys[i]);
+    return paths;
+  }
+
+  /** 批量讀取布爾值，鍵爲相對本節點的路徑，讀不到時取缺省值 */
+  public boolean[] getBooleans(String[] keys, boolean defaultValue) {
+    return Rime.config_get_bools(Rime.getConfigHandle(name), getPaths(keys), defaultValue);
+  }
+
+  /** 批量讀取整數，鍵爲相對本節點的路徑，讀不到時取缺省值 */
+  public int[] getInts(String[] keys, int defaultValue) {
+    return Rime.config_get_ints(Rime.getConfigHandle(name), getPaths(keys), defaultValue);
+  }
+
+  /** 批量讀取浮點數，鍵爲相對本節點的路徑，讀不到時取缺省值 */
+  public double[] getDoubles(String[] keys, double defaultValue) {
+    return Rime.config_get_doubles(Rime.getConfigHandle(name), getPaths(keys), defaultValue);
+  }
+
+  private void load() {
+    if (values != null) return;
+    long handle = Rime.getConfigHandle(name);
+    for (String key : keys) {
+      if (key.indexOf('/') >= 0) {
+        Object o = Rime.config_get_node(handle, path);
+        values = o instanceof Map ? (Map<String, Object>) o : new HashMap<String, Object>();
+        return;
+      }
+    }
+    String[] paths = new String[keys.size()];
+    int i = 0;
+    for (String key : keys) paths[i++] = getPath(key);
+    String[] scalars = Rime.config_get_strings(handle, paths);
+    values = new HashMap<String, Object>(keys.size());
+    i = 0;
+    for (String key : keys) {
+      if (scalars != null && scalars[i] != null) values.put(key, scalars[i]);
+      i++;
+    }
+  }
+
+  @Override
+  public Object get(Object key) {
+    if (!containsKey(key)) return null;
+    load();
+    if (values.containsKey(key)) return values.get(key);
+    String k = key.toString();
+    Object o;
+    long handle = Rime.getConfigHandle(name);
+    String[] children = Rime.config_get_keys(handle, getPath(k));
+    if (children != null) o = new ConfigMap(name, getPath(k), children);
+    else o = Rime.config_get_node(handle, getPath(k));
+    values.put(k, o);
+    return o;
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return keys.contains(key);
+  }
+
+  @Override
+  public Set<String> keySet() {
+    return keys;
+  }
+
+  @Override
+  public int size() {
+    return keys.size();
+  }
+
+  @Override
+  public void clear() {
+    keys.clear();
+    if (values != null) values.clear();
+  }
+
+  @Override
+  public Set<Entry<String, Object>> entrySet() {
+    return new AbstractSet<Entry<String, Object>>() {
+      @Override
+      public Iterator<Entry<String, Object>> iterator() {
+        final Iterator<String> it = keys.iterator();
+        return new Iterator<Entry<String, Object>>() {
+          @Override
+          public boolean hasNext() {
+            return it.hasNext();
+          }
+
+          @Override
+          public Entry<String, Object> next() {
+            String key = it.next();
+            return new SimpleImmutableEntry<String, Object>(key, get(key));
+          }
+
+          @Override
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return keys.size();
+      }
+    };
+  }
+}
@@ -39,15 +39,67 @@ public class Event {
   private String select;
   private String toggle;
   private String commit;
+  private Macro macro;
+  private Macro upperMacro; //單個字符大寫時的步驟表
 
   private String shiftLock;
   private boolean functional;
   private boolean repeatable;
   private boolean sticky;
 
+  /** 同一主題中相同寫法的事件只解析一次 */
+  private static final Map<String, Event> sEvents = new HashMap<String, Event>();
+
+  /**
+   * 獲得事件，相同寫法的事件共用解析結果
+   *
+   * @param keyboard 所在鍵盤，用於大小寫
+   * @param s 事件的寫法
+   * @return 不屬於任何鍵盤時返回共用的事件，否則返回共用解析結果的新事件
+   */
+  public static Event get(Keyboard keyboard, String s) {
+    Event e = sEvents.get(s);
+    if (e == null) {
+      e = new Event(null, s);
+      sEvents.put(s, e);
+      e.compileMacros(); //先入緩存，文本引用自身時不再遞歸
+    }
+    return keyboard == null ? e : new Event(keyboard, e);
+  }
+
+  public static Event get(String s) {
+    return get(null, s);
+  }
+
+  /** 主題或方案改變時清空，標籤等可能隨之改變 */
+  public static void clearCache() {
+    sEvents.clear();
+  }
+
+  private Event(Keyboard keyboard, Event e) {
+    mKeyboard = keyboard;
+    code = e.code;
+    mask = e.mask;
+    text = e.text;
+    label = e.label;
+    preview = e.preview;
+    states = e.states;
+    command = e.command;
+    option = e.option;
+    select = e.select;
+    toggle = e.toggle;
+    commit = e.commit;
+    shiftLock = e.shiftLock;
+    functional = e.functional;
+    repeatable = e.repeatable;
+    sticky = e.sticky;
+    macro = e.macro;
+    upperMacro = e.upperMacro;
+  }
+
   public Event(Keyboard keyboard, String s) {
     mKeyboard = keyboard;
-    if (s.matches("\\{[^\\{\\}]+\\}")) { //{send|key}
+    if (isBraced(s)) { //{send|key}
       label = s.substring(1, s.length() -1);
       int[] sends = parseSend(label); //send
       code = sends[0];
@@ -83,8 +135,40 @@ public class Event {
     } else {
       code = 0;
       text = s;
-      label = s.replaceAll("\\{[^\\{\\}]+?\\}", "");
+      label = removeBraced(s);
+    }
+  }
+
+  /** 是否爲「{...}」，大括號內不能爲空或再含大括號 */
+  private static boolean isBraced(String s) {
+    int n = s.length();
+    if (n < 3 || s.charAt(0) != '{' || s.charAt(n - 1) != '}') return false;
+    for (int i = 1; i < n - 1; i++) {
+      char c = s.charAt(i);
+      if (c == '{' || c == '}') return false;
+    }
+    return true;
+  }
+
+  /** 去掉文本中所有的「{...}」 */
+  private static String removeBraced(String s) {
+    int i = s.indexOf('{');
+    if (i < 0) return s;
+    StringBuilder sb = new StringBuilder(s.length());
+    int start = 0;
+    while (i >= 0) {
+      int end = i + 1;
+      while (end < s.length() && s.charAt(end) != '{' && s.charAt(end) != '}') end++;
+      if (end < s.length() && s.charAt(end) == '}' && end > i + 1) {
+        sb.append(s, start, i);
+        start = end + 1;
+        i = s.indexOf('{', start);
+      } else {
+        i = s.indexOf('{', i + 1);
+      }
     }
+    sb.append(s, start, s.length());
+    return sb.toString();
   }
 
   public Event(String s) {
@@ -138,7 +222,7 @@ public class Event {
       for (int i = 0; i < n - 1; i++) if (masks.containsKey(ss[i])) sends[1] |= masks.get(ss[i]);
       codes = ss[n - 1];
     }
-    sends[0] = Key.androidKeys.indexOf(codes);
+    sends[0] = Key.getKeyCode(codes);
     return sends;
   }
 
@@ -169,6 +253,30 @@ public class Event {
     return adjustCase(s);
   }
 
+  /** 預先解析{@link #getText()}可能返回的文本，單個字符時連同大寫一起解析 */
+  private void compileMacros() {
+    String s = text;
+    if (Function.isEmpty(s)
+        && mask == 0
+        && code >= KeyEvent.KEYCODE_A
+        && code <= KeyEvent.KEYCODE_Z) s = label;
+    if (Function.isEmpty(s)) return;
+    macro = Macro.compile(s);
+    if (s.length() == 1) {
+      String upper = s.toUpperCase(Locale.getDefault());
+      if (!upper.equals(s)) upperMacro = Macro.compile(upper);
+    }
+  }
+
+  /** 按鍵文本的步驟表，建立事件時已解析 */
+  public Macro getMacro() {
+    String s = getText();
+    if (Function.isEmpty(s)) return null;
+    if (macro != null && macro.toString().equals(s)) return macro;
+    if (upperMacro != null && upperMacro.toString().equals(s)) return upperMacro;
+    return Macro.compile(s); //語言環境改變等情況
+  }
+
   public String getPreviewText() {
     if (!Function.isEmpty(preview)) return preview;
     return getLabel();
@@ -211,40 +319,49 @@ public class Event {
   }
 
   public static int getClickCode(String s) {
-    int keyCode = -1;
-    if (Function.isEmpty(s)) { //空鍵
-      keyCode = 0;
-    } else if (Key.androidKeys.contains(s)) { //字母數字
-      keyCode = Key.androidKeys.indexOf(s);
-    } else if (Key.getSymbols().contains(s)) { //可見符號
-      keyCode = Key.getSymbolStart() + Key.getSymbols().indexOf(s);
-    } else if (symbolAliases.containsKey(s)) {
-      keyCode = symbolAliases.get(s);
-    }
+    if (Function.isEmpty(s)) return 0; //空鍵
+    int keyCode = Key.getKeyCode(s); //字母數字
+    if (keyCode < 0) keyCode = Key.getSymbolCode(s); //可見符號
+    if (keyCode < 0 && symbolAliases.containsKey(s)) keyCode = symbolAliases.get(s);
     return keyCode;
   }
 
-  private static int getRimeCode(int code) {
-    int i = 0;
-    if (code >= 0 && code < Key.androidKeys.size()) {
-      String s = Key.androidKeys.get(code);
-      i = Rime.get_keycode_by_name(s);
-    }
-    return i;
+  /** 安卓鍵碼對應的Rime鍵碼，查{@link Key#initKeyCodes()}建立的表，不經JNI */
+  public static int getRimeKeycode(int code) {
+    return Key.getRimeKeycode(code);
   }
 
   public static boolean hasModifier(int mask, int modifier) {
     return (mask & modifier) > 0;
   }
 
-  public static int[] getRimeEvent(int code, int mask) {
-    int i = getRimeCode(code);
-    int m = 0;
-    if (hasModifier(mask, KeyEvent.META_SHIFT_ON)) m |= Rime.META_SHIFT_ON;
-    if (hasModifier(mask, KeyEvent.META_CTRL_ON)) m |= Rime.META_CTRL_ON;
-    if (hasModifier(mask, KeyEvent.META_ALT_ON)) m |= Rime.META_ALT_ON;
+  /** Shift、Alt、Ctrl各種組合對應的Rime修飾鍵，下標見{@link #getRimeModifier(int)} */
+  private static final int[] sRimeModifiers = new int[8];
+  /** Shift、Alt已在下標的第0、1位，Ctrl右移到第2位 */
+  private static final int CTRL_SHIFT = Integer.numberOfTrailingZeros(KeyEvent.META_CTRL_ON) - 2;
+
+  static {
+    for (int i = 0; i < sRimeModifiers.length; i++) {
+      int m = 0;
+      if ((i & 1) != 0) m |= Rime.META_SHIFT_ON;
+      if ((i & 2) != 0) m |= Rime.META_ALT_ON;
+      if ((i & 4) != 0) m |= Rime.META_CTRL_ON;
+      sRimeModifiers[i] = m;
+    }
+  }
+
+  /** 安卓修飾鍵對應的Rime修飾鍵，只有{@link Rime#META_RELEASE_ON}時表示釋放按鍵 */
+  public static int getRimeModifier(int mask) {
+    int i =
+        (mask & (KeyEvent.META_SHIFT_ON | KeyEvent.META_ALT_ON))
+            | (mask & KeyEvent.META_CTRL_ON) >>> CTRL_SHIFT;
+    int m = sRimeModifiers[i];
     if (mask == Rime.META_RELEASE_ON) m |= Rime.META_RELEASE_ON;
-    return new int[] {i, m};
+    return m;
+  }
+
+  public static int[] getRimeEvent(int code, int mask) {
+    return new int[] {getRimeKeycode(code), getRimeModifier(mask)};
   }
 
   private static Map<String, Integer> masks =
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2015-present, osfans
+ * waxaca@163.com https://github.com/osfans
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.osfans.trime;
+
+import android.graphics.Typeface;
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * 進程內共用的字體
+ *
+ * <p>以文件路徑和修改時間爲鍵，同一字體文件只解析一次。文件更新後換成新字體，舊字體由仍在使用的界面持有，不再使用時隨之回收。
+ */
+public class FontCache {
+  private static Logger Log = Logger.getLogger(FontCache.class.getSimpleName());
+
+  private static class Entry {
+    final long modified;
+    final Typeface typeface;
+
+    Entry(long modified, Typeface typeface) {
+      this.modified = modified;
+      this.typeface = typeface;
+    }
+  }
+
+  private static final Map<String, Entry> sPaths = new HashMap<String, Entry>();
+
+  /**
+   * 取得字體
+   *
+   * @param file 字體文件
+   * @return 字體，文件不存在或無法解析時返回{@link Typeface#DEFAULT}
+   */
+  public static synchronized Typeface get(File file) {
+    if (!file.isFile()) return Typeface.DEFAULT;
+    String path = file.getPath();
+    long modified = file.lastModified();
+    Entry e = sPaths.get(path);
+    if (e != null && e.modified == modified) return e.typeface;
+    Typeface tf;
+    try {
+      tf = Typeface.createFromFile(file);
+    } catch (RuntimeException ex) {
+      Log.warning("Fail to load font " + path + ": " + ex);
+      return Typeface.DEFAULT;
+    }
+    sPaths.put(path, new Entry(modified, tf));
+    return tf;
+  }
+
+  /** 清空，內存不足時調用，已在使用的字體不受影響 */
+  public static synchronized void trim() {
+    sPaths.clear();
+  }
+}
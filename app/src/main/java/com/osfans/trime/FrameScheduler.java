@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2015-present, osfans
+ * waxaca@163.com https://github.com/osfans
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.osfans.trime;
+
+import android.annotation.TargetApi;
+import android.os.Build.VERSION;
+import android.os.Build.VERSION_CODES;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+/**
+ * 按幀合併的界面刷新
+ *
+ * <p>各處只標記需要刷新的部分，到下一個垂直同步時一次完成佈局與重繪。API 16以下沒有Choreographer，改用Handler對齊到16毫秒。
+ */
+public class FrameScheduler implements Runnable {
+  /** 編碼區、候選條與懸浮窗 */
+  public static final int COMPOSING = 1;
+  /** 鍵盤上隨編碼變化的按鍵 */
+  public static final int COMPOSING_KEYS = 1 << 1;
+  /** 整個鍵盤 */
+  public static final int ALL_KEYS = 1 << 2;
+
+  private static final long FRAME_MILLIS = 16;
+
+  /** 在主線程執行的刷新 */
+  public interface Callback {
+    void onFrame(int dirty);
+  }
+
+  private final Callback callback;
+  private final Handler handler = new Handler(Looper.getMainLooper());
+  private Object frameCallback;
+  private int dirty;
+  private boolean scheduled;
+
+  public FrameScheduler(Callback callback) {
+    this.callback = callback;
+  }
+
+  /** 標記需要刷新的部分，同一幀內多次標記只刷新一次 */
+  public void invalidate(int flags) {
+    dirty |= flags;
+    if (scheduled) return;
+    scheduled = true;
+    if (VERSION.SDK_INT >= VERSION_CODES.JELLY_BEAN) {
+      postFrameCallback();
+    } else {
+      long now = SystemClock.uptimeMillis();
+      handler.postAtTime(this, now + FRAME_MILLIS - now % FRAME_MILLIS);
+    }
+  }
+
+  /** 立即執行尚未完成的刷新，用於需要馬上測量界面的場合 */
+  public void flush() {
+    if (!scheduled) return;
+    cancel();
+    run();
+  }
+
+  public void cancel() {
+    if (!scheduled) return;
+    scheduled = false;
+    if (VERSION.SDK_INT >= VERSION_CODES.JELLY_BEAN) removeFrameCallback();
+    else handler.removeCallbacks(this);
+  }
+
+  @TargetApi(VERSION_CODES.JELLY_BEAN)
+  private void postFrameCallback() {
+    if (frameCallback == null) {
+      frameCallback =
+          new Choreographer.FrameCallback() {
+            @Override
+            public void doFrame(long frameTimeNanos) {
+              FrameScheduler.this.run();
+            }
+          };
+    }
+    Choreographer.getInstance().postFrameCallback((Choreographer.FrameCallback) frameCallback);
+  }
+
+  @TargetApi(VERSION_CODES.JELLY_BEAN)
+  private void removeFrameCallback() {
+    if (frameCallback == null) return;
+    Choreographer.getInstance().removeFrameCallback((Choreographer.FrameCallback) frameCallback);
+  }
+
+  @Override
+  public void run() {
+    scheduled = false;
+    int flags = dirty;
+    dirty = 0;
+    if (flags != 0) callback.onFrame(flags);
+  }
+}
@@ -37,6 +37,7 @@ import android.util.Log;
 import android.util.SparseArray;
 import android.view.KeyEvent;
 
+import com.osfans.trime.ime.core.Trime;
 import com.osfans.trime.settings.PrefMainActivity;
 
 import java.text.FieldPosition;
@@ -49,6 +50,7 @@ import java.util.Locale;
 public class Function {
   private static String TAG = Function.class.getSimpleName();
   private static SparseArray<String> sApplicationLaunchKeyCategories;
+  private static final int LONG_TEXT_LENGTH = 4096; //超過此長度的文本分段轉換
 
   static {
     sApplicationLaunchKeyCategories = new SparseArray<String>();
@@ -183,6 +185,36 @@ public class Function {
     }
   }
 
+  /**
+   * 用OpenCC轉換剪貼板文字
+   *
+   * <p>長文本在轉換線程分段轉換，每轉好一段即上屏，此時返回null，由調用者跳過上屏
+   */
+  private static String convertClipboard(String s, String opencc_config) {
+    if (s.length() <= LONG_TEXT_LENGTH) return Rime.openccConvert(s, opencc_config);
+    Rime.openccConvert(
+        s,
+        opencc_config,
+        new OpenccStream.Listener() {
+          @Override
+          public void onChunk(String text, int converted, int total) {
+            Trime trime = Trime.getService();
+            if (trime != null) trime.commitText(text, false);
+          }
+
+          @Override
+          public void onFinish() {}
+        });
+    return null;
+  }
+
+  /**
+   * 執行命令
+   *
+   * <p>clipboard命令的選項爲OpenCC配置文件名，非空時轉換剪貼板文字後上屏，爲空時與原來一樣直接返回剪貼板文字
+   *
+   * @return 待上屏的文字，沒有時返回null
+   */
   public static String handle(Context context, String command, String option) {
     String s = null;
     if (command == null) return s;
@@ -198,6 +230,7 @@ public class Function {
         break;
       case "clipboard":
         s = getClipboard(context);
+        if (!isEmpty(option) && s.length() > 0) s = convertClipboard(s, option);
         break;
       default:
         startIntent(context, command, option); //其他intent
@@ -242,6 +275,14 @@ public class Function {
     }
   }
 
+  public static int getVersionCode(Context context) {
+    try {
+      return context.getPackageManager().getPackageInfo(context.getPackageName(), 0).versionCode;
+    } catch (Exception e) {
+      return 0;
+    }
+  }
+
   public static boolean isAppAvailable(Context context, String app) {
     final PackageManager packageManager = context.getPackageManager();
     List<PackageInfo> pinfo = packageManager.getInstalledPackages(0);
@@ -22,6 +22,7 @@ import android.graphics.drawable.Drawable;
 import android.view.KeyCharacterMap;
 import android.view.KeyEvent;
 import com.osfans.trime.enums.KeyEventType;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -57,6 +58,9 @@ public class Key {
   public int edgeFlags;
   private static int symbolStart;
   private static String symbols;
+  private static Map<String, Integer> keyCodes = new HashMap<String, Integer>();
+  private static Map<String, Integer> symbolCodes = new HashMap<String, Integer>();
+  private static int[] rimeKeycodes = new int[0];
   private static KeyCharacterMap kcm = KeyCharacterMap.load(KeyCharacterMap.VIRTUAL_KEYBOARD);
   private Keyboard mKeyboard;
   private Event ascii;
@@ -207,8 +211,10 @@ public class Key {
    *
    * @param parent 按鍵所在的{@link Keyboard 鍵盤}
    * @param mk 從YAML中解析得到的Map
+   * @param width 按鍵寬度，用於縮小背景圖片
+   * @param height 按鍵高度，用於縮小背景圖片
    */
-  public Key(Context context, Keyboard parent, Map<String, Object> mk) {
+  public Key(Context context, Keyboard parent, Map<String, Object> mk, int width, int height) {
     this(parent);
     String s;
     for (int i = 0; i < EVENT_NUM; i++) {
@@ -218,19 +224,19 @@ public class Key {
           };
       String eventType = eventTypes[i];
       s = Config.getString(mk, eventType);
-      if (!Function.isEmpty(s)) events[i] = new Event(mKeyboard, s);
-      else if (i == KeyEventType.CLICK.ordinal()) events[i] = new Event(mKeyboard, "");
+      if (!Function.isEmpty(s)) events[i] = Event.get(mKeyboard, s);
+      else if (i == KeyEventType.CLICK.ordinal()) events[i] = Event.get(mKeyboard, "");
     }
     s = Config.getString(mk, "composing");
-    if (!Function.isEmpty(s)) composing = new Event(mKeyboard, s);
+    if (!Function.isEmpty(s)) composing = Event.get(mKeyboard, s);
     s = Config.getString(mk, "has_menu");
-    if (!Function.isEmpty(s)) has_menu = new Event(mKeyboard, s);
+    if (!Function.isEmpty(s)) has_menu = Event.get(mKeyboard, s);
     s = Config.getString(mk, "paging");
-    if (!Function.isEmpty(s)) paging = new Event(mKeyboard, s);
+    if (!Function.isEmpty(s)) paging = Event.get(mKeyboard, s);
     if (composing != null || has_menu != null || paging != null)
       mKeyboard.getmComposingKeys().add(this);
     s = Config.getString(mk, "ascii");
-    if (!Function.isEmpty(s)) ascii = new Event(mKeyboard, s);
+    if (!Function.isEmpty(s)) ascii = Event.get(mKeyboard, s);
     label = Config.getString(mk, "label");
     hint = Config.getString(mk, "hint");
     if (mk.containsKey("send_bindings")) send_bindings = Config.getBoolean(mk, "send_bindings");
@@ -240,8 +246,9 @@ public class Key {
     symbol_text_size = Config.getPixel(mk, "symbol_text_size");
     key_text_color = Config.getColor(context, mk, "key_text_color");
     hilited_key_text_color = Config.getColor(context, mk, "hilited_key_text_color");
-    key_back_color = Config.getColorDrawable(context, mk, "key_back_color");
-    hilited_key_back_color = Config.getColorDrawable(context, mk, "hilited_key_back_color");
+    key_back_color = Config.getColorDrawable(context, mk, "key_back_color", width, height);
+    hilited_key_back_color =
+        Config.getColorDrawable(context, mk, "hilited_key_back_color", width, height);
     key_symbol_color = Config.getColor(context, mk, "key_symbol_color");
     hilited_key_symbol_color = Config.getColor(context, mk, "hilited_key_symbol_color");
     round_corner = Config.getFloat(mk, "round_corner");
@@ -271,6 +278,42 @@ public class Key {
     Key.symbols = symbols;
   }
 
+  /** 建立按鍵名、可見符號到鍵碼的散列表和安卓到Rime的鍵碼表，讀取主題的android_keys後調用 */
+  public static void initKeyCodes() {
+    keyCodes = new HashMap<String, Integer>(androidKeys.size() * 2);
+    for (int i = androidKeys.size() - 1; i >= 0; i--) keyCodes.put(androidKeys.get(i), i);
+    rimeKeycodes = new int[androidKeys.size()];
+    for (int i = 0; i < rimeKeycodes.length; i++) {
+      String name = androidKeys.get(i);
+      if (name != null) rimeKeycodes[i] = Rime.get_keycode_by_name(name);
+    }
+    symbolCodes = new HashMap<String, Integer>(symbols.length() * 2);
+    for (int i = symbols.length() - 1; i >= 0; i--) {
+      symbolCodes.put(symbols.substring(i, i + 1), symbolStart + i);
+    }
+  }
+
+  /** @return 按鍵名對應的鍵碼，沒有時返回-1 */
+  public static int getKeyCode(String name) {
+    Integer i = keyCodes.get(name);
+    return i == null ? -1 : i;
+  }
+
+  /** @return 安卓鍵碼對應的Rime鍵碼，沒有時返回0 */
+  public static int getRimeKeycode(int code) {
+    return code >= 0 && code < rimeKeycodes.length ? rimeKeycodes[code] : 0;
+  }
+
+  /** @return 可見符號對應的鍵碼，多個字符時取其在符號表中的位置，沒有時返回-1 */
+  public static int getSymbolCode(String symbol) {
+    if (symbol.length() > 1) {
+      int i = symbols.indexOf(symbol);
+      return i < 0 ? -1 : symbolStart + i;
+    }
+    Integer i = symbolCodes.get(symbol);
+    return i == null ? -1 : i;
+  }
+
   public static KeyCharacterMap getKcm() {
     return kcm;
   }
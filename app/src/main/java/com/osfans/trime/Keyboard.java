@@ -94,13 +94,14 @@ public class Keyboard {
     //Log.v(TAG, "keyboard's display metrics:" + dm);
 
     Config config = Config.get(context);
-    mDefaultHorizontalGap = config.getPixel("horizontal_gap");
-    mDefaultVerticalGap = config.getPixel("vertical_gap");
-    mDefaultWidth = (int) (mDisplayWidth * config.getDouble("key_width") / 100);
-    mDefaultHeight = config.getPixel("key_height");
+    StyleSnapshot style = config.getStyle();
+    mDefaultHorizontalGap = style.horizontal_gap;
+    mDefaultVerticalGap = style.vertical_gap;
+    mDefaultWidth = (int) (mDisplayWidth * style.key_width / 100);
+    mDefaultHeight = style.key_height;
     mProximityThreshold = (int) (mDefaultWidth * SEARCH_DISTANCE);
     mProximityThreshold = mProximityThreshold * mProximityThreshold; // Square it for comparison
-    mRoundCorner = config.getFloat("round_corner");
+    mRoundCorner = style.round_corner;
     mBackground = config.getColorDrawable("keyboard_back_color");
 
     mKeys = new ArrayList<Key>();
@@ -144,7 +145,7 @@ public class Keyboard {
       key.setWidth(mDefaultWidth);
       key.setHeight(mDefaultHeight);
       key.setGap(mDefaultHorizontalGap);
-      key.events[0] = new Event(this, String.valueOf(c));
+      key.events[0] = Event.get(this, String.valueOf(c));
       column++;
       x += key.getWidth() + key.getGap();
       mKeys.add(key);
@@ -175,7 +176,8 @@ public class Keyboard {
     if (m.containsKey("vertical_gap")) mDefaultVerticalGap = Config.getPixel(m, "vertical_gap");
     if (m.containsKey("round_corner")) mRoundCorner = Config.getFloat(m, "round_corner");
     if (m.containsKey("keyboard_back_color")) {
-      Drawable background = Config.getColorDrawable(context, m, "keyboard_back_color");
+      Drawable background =
+          Config.getColorDrawable(context, m, "keyboard_back_color", mDisplayWidth, 0);
       if (background != null) mBackground = background;
     }
     int x = mDefaultHorizontalGap / 2;
@@ -222,7 +224,10 @@ public class Keyboard {
         continue; //縮進
       }
 
-      final Key key = new Key(context, this, mk);
+      int right_gap = Math.abs(mDisplayWidth - x - w - gap / 2);
+      //右側不留白
+      int width = (right_gap <= mDisplayWidth / 100) ? mDisplayWidth - x - gap / 2 : w;
+      final Key key = new Key(context, this, mk, width, rowHeight);
       key.setKey_text_offset_x(Config.getPixel(mk, "key_text_offset_x", key_text_offset_x));
       key.setKey_text_offset_y(Config.getPixel(mk, "key_text_offset_y", key_text_offset_y));
       key.setKey_symbol_offset_x(Config.getPixel(mk, "key_symbol_offset_x", key_symbol_offset_x));
@@ -234,9 +239,7 @@ public class Keyboard {
 
       key.setX(x);
       key.setY(y);
-      int right_gap = Math.abs(mDisplayWidth - x - w - gap / 2);
-      //右側不留白
-      key.setWidth((right_gap <= mDisplayWidth / 100) ? mDisplayWidth - x - gap / 2 : w);
+      key.setWidth(width);
       key.setHeight(rowHeight);
       key.setGap(gap);
       key.setRow(row);
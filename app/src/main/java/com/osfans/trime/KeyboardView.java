@@ -112,6 +112,7 @@ public class KeyboardView extends View implements View.OnClickListener {
   private static String TAG = KeyboardView.class.getSimpleName();
 
   private Keyboard mKeyboard;
+  private int mComposingGeneration = -1;
   private int mCurrentKeyIndex = NOT_A_KEY;
   private int mLabelTextSize;
   private int mKeyTextSize;
@@ -277,18 +278,19 @@ public class KeyboardView extends View implements View.OnClickListener {
       Trime.getService().getWindow().getWindow().setNavigationBarColor(mShadowColor);
     }
 
-    mSymbolSize = config.getPixel("symbol_text_size");
-    mKeyTextSize = config.getPixel("key_text_size");
-    mVerticalCorrection = config.getPixel("vertical_correction");
-    setProximityCorrectionEnabled(config.getBoolean("proximity_correction"));
-    mPreviewOffset = config.getPixel("preview_offset");
-    mPreviewHeight = config.getPixel("preview_height");
-    mLabelTextSize = config.getPixel("key_long_text_size");
+    StyleSnapshot style = config.getStyle();
+    mSymbolSize = style.symbol_text_size;
+    mKeyTextSize = style.key_text_size;
+    mVerticalCorrection = style.vertical_correction;
+    setProximityCorrectionEnabled(style.proximity_correction);
+    mPreviewOffset = style.preview_offset;
+    mPreviewHeight = style.preview_height;
+    mLabelTextSize = style.key_long_text_size;
     if (mLabelTextSize == 0) mLabelTextSize = mKeyTextSize;
 
-    mBackgroundDimAmount = config.getFloat("background_dim_amount");
-    mShadowRadius = config.getFloat("shadow_radius");
-    float mRoundCorner = config.getFloat("round_corner");
+    mBackgroundDimAmount = style.background_dim_amount;
+    mShadowRadius = style.shadow_radius;
+    float mRoundCorner = style.round_corner;
 
     mKeyBackColor = new StateListDrawable();
     mKeyBackColor.addState(
@@ -322,7 +324,7 @@ public class KeyboardView extends View implements View.OnClickListener {
       background.setCornerRadius(mRoundCorner);
       mPreviewText.setBackgroundDrawable(background);
     }
-    int mPreviewTextSizeLarge = config.getInt("preview_text_size");
+    int mPreviewTextSizeLarge = style.preview_text_size;
     mPreviewText.setTextSize(mPreviewTextSizeLarge);
     mShowPreview = config.getShowPreview();
 
@@ -493,6 +495,7 @@ public class KeyboardView extends View implements View.OnClickListener {
     removeMessages();
     mRepeatKeyIndex = NOT_A_KEY;
     mKeyboard = keyboard;
+    mComposingGeneration = -1;
     List<Key> keys = mKeyboard.getKeys();
     mKeys = keys.toArray(new Key[keys.size()]);
     setKeyboardBackground();
@@ -1232,6 +1235,8 @@ public class KeyboardView extends View implements View.OnClickListener {
   }
 
   public void invalidateComposingKeys() {
+    if (mComposingGeneration == Rime.getGeneration()) return; //編碼和狀態未變
+    mComposingGeneration = Rime.getGeneration();
     List<Key> keys = mKeyboard.getComposingKeys();
     if (keys != null && keys.size() > 5) invalidateAllKeys();
     else invalidateKeys(keys);
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2015-present, osfans
+ * waxaca@163.com https://github.com/osfans
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.osfans.trime;
+
+import android.view.KeyEvent;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 按鍵文本解析成的步驟表
+ *
+ * <p>文本中的「{按鍵}」與普通文字只解析一次，按下時依次執行，不再用正則匹配和截取字符串。
+ */
+public class Macro {
+  /** 交給Rime模擬的按鍵序列，未上屏也未在輸入時直接上屏 */
+  public static final int SEQUENCE = 0;
+  /** 只發送按鍵的事件，與按鍵序列一起交給引擎 */
+  public static final int KEY = 1;
+  /** 其他事件，由Trime處理 */
+  public static final int EVENT = 2;
+
+  private static final String ESCAPE = "{Escape}";
+
+  private final String source;
+  private final int[] types;
+  private final String[] texts;
+  private final Event[] events;
+
+  private Macro(String source, List<String> texts, List<Event> events) {
+    this.source = source;
+    int n = texts.size();
+    this.types = new int[n];
+    this.texts = texts.toArray(new String[n]);
+    this.events = events.toArray(new Event[n]);
+    for (int i = 0; i < n; i++) {
+      Event e = this.events[i];
+      types[i] = e == null ? SEQUENCE : isKey(e) ? KEY : EVENT;
+    }
+  }
+
+  /**
+   * 解析按鍵文本：「{Escape}」開頭或不含大括號的一段文字爲按鍵序列，「{...}」爲按鍵事件，落單的大括號按單個字符處理
+   *
+   * @param s 按鍵文本
+   * @return 步驟表
+   */
+  public static Macro compile(String s) {
+    List<String> texts = new ArrayList<String>();
+    List<Event> events = new ArrayList<Event>();
+    int i = 0;
+    int n = s.length();
+    while (i < n) {
+      int end = getTextEnd(s, i);
+      Event event = null;
+      if (end < 0) {
+        end = getBraceEnd(s, i);
+        if (end < 0) end = i + 1;
+        event = Event.get(s.substring(i, end));
+      }
+      texts.add(s.substring(i, end));
+      events.add(event);
+      i = end;
+    }
+    return new Macro(s, texts, events);
+  }
+
+  /** 可帶「{Escape}」前綴、不含大括號的文字的結尾，不匹配時返回-1 */
+  private static int getTextEnd(String s, int start) {
+    int i = s.startsWith(ESCAPE, start) ? start + ESCAPE.length() : start;
+    int j = i;
+    while (j < s.length() && s.charAt(j) != '{' && s.charAt(j) != '}') j++;
+    return j > i ? j : -1;
+  }
+
+  /** 「{...}」的結尾，不匹配時返回-1 */
+  private static int getBraceEnd(String s, int start) {
+    if (s.charAt(start) != '{') return -1;
+    for (int j = start + 1; j < s.length(); j++) {
+      char c = s.charAt(j);
+      if (c == '{') return -1;
+      if (c == '}') return j > start + 1 ? j + 1 : -1;
+    }
+    return -1;
+  }
+
+  /** 只發送按鍵、可直接交給引擎的事件 */
+  private static boolean isKey(Event e) {
+    if (e.getCode() <= 0) return false;
+    if (!Function.isEmpty(e.getCommit()) || !Function.isEmpty(e.getText())) return false;
+    switch (e.getCode()) {
+      case KeyEvent.KEYCODE_SWITCH_CHARSET:
+      case KeyEvent.KEYCODE_EISU:
+      case KeyEvent.KEYCODE_LANGUAGE_SWITCH:
+      case KeyEvent.KEYCODE_FUNCTION:
+      case KeyEvent.KEYCODE_VOICE_ASSIST:
+      case KeyEvent.KEYCODE_SETTINGS:
+      case KeyEvent.KEYCODE_PROG_RED:
+        return false;
+      default:
+        return true;
+    }
+  }
+
+  public int size() {
+    return types.length;
+  }
+
+  public int getType(int i) {
+    return types[i];
+  }
+
+  public String getText(int i) {
+    return texts[i];
+  }
+
+  public Event getEvent(int i) {
+    return events[i];
+  }
+
+  /** 從第i步起，到下一個須由Trime處理的事件爲止 */
+  public int getEngineEnd(int i) {
+    while (i < types.length && types[i] != EVENT) i++;
+    return i;
+  }
+
+  @Override
+  public String toString() {
+    return source;
+  }
+}
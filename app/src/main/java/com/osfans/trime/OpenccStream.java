@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2015-present, osfans
+ * waxaca@163.com https://github.com/osfans
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.osfans.trime;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * 分段轉換長文本的OpenCC流
+ *
+ * <p>文本在換行、標點等處切段，避免拆散詞組。每段經直接緩衝區交給OpenCC，在轉換線程執行，轉好一段即交給調用者，不在內存中拼接全文。
+ */
+public class OpenccStream implements Runnable {
+  /** 轉換結果回調，在調用{@link #start()}的線程上按順序執行 */
+  public interface Listener {
+    /**
+     * 轉好一段
+     *
+     * @param text 本段轉換後的文字
+     * @param converted 已轉換的原文字數
+     * @param total 原文總字數
+     */
+    void onChunk(String text, int converted, int total);
+
+    void onFinish();
+  }
+
+  private static final int CHUNK_LENGTH = 4096;
+  private static final String BOUNDARIES = "\n\r\t 。，、；：！？…」』）,.;:!?)";
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static HandlerThread sThread;
+  private static Handler sHandler;
+
+  private final CharSequence text;
+  private final String config;
+  private final Listener listener;
+  private final Handler handler = new Handler();
+  private final CharsetEncoder encoder;
+  private final ByteBuffer input;
+  private ByteBuffer output;
+  private byte[] bytes;
+  private int position;
+  private volatile boolean cancelled;
+
+  OpenccStream(CharSequence text, String config, Listener listener) {
+    this.text = text.toString(); //轉換線程讀取，不能再被修改
+    this.config = config;
+    this.listener = listener;
+    encoder =
+        UTF_8
+            .newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    input = ByteBuffer.allocateDirect(CHUNK_LENGTH * 3).order(ByteOrder.nativeOrder());
+    output = ByteBuffer.allocateDirect(CHUNK_LENGTH * 4).order(ByteOrder.nativeOrder());
+    bytes = new byte[CHUNK_LENGTH * 4];
+  }
+
+  /** 所有轉換流共用一個轉換線程，不佔用界面線程和Rime引擎線程 */
+  private static synchronized Handler getWorker() {
+    if (sThread == null) {
+      sThread = new HandlerThread("OpenccStream");
+      sThread.start();
+      sHandler = new Handler(sThread.getLooper());
+    }
+    return sHandler;
+  }
+
+  public void start() {
+    getWorker().post(this);
+  }
+
+  /** 取消轉換，已交給調用者的段不受影響，之後不再回調 */
+  public void cancel() {
+    cancelled = true;
+    getWorker().removeCallbacks(this);
+  }
+
+  /** 找到本段的結尾，優先停在分段符號之後，不拆開代理對 */
+  private int getChunkEnd() {
+    int end = position + CHUNK_LENGTH;
+    if (end >= text.length()) return text.length();
+    for (int i = end - 1; i > position + CHUNK_LENGTH / 2; i--) {
+      if (BOUNDARIES.indexOf(text.charAt(i)) >= 0) return i + 1;
+    }
+    if (Character.isHighSurrogate(text.charAt(end - 1))) end--;
+    return end;
+  }
+
+  /** 轉換下一段，只在轉換線程調用 */
+  private String step() {
+    int end = getChunkEnd();
+    input.clear();
+    encoder.reset();
+    encoder.encode(CharBuffer.wrap(text, position, end), input, true);
+    encoder.flush(input);
+    int length = input.position();
+    int n = Rime.opencc_convert_buffer(input, length, output, config);
+    if (n < 0) {
+      output = ByteBuffer.allocateDirect(-n).order(ByteOrder.nativeOrder());
+      n = Rime.opencc_convert_buffer(input, length, output, config);
+    }
+    String s = "";
+    if (n > 0) {
+      if (bytes.length < n) bytes = new byte[n];
+      output.clear();
+      output.get(bytes, 0, n);
+      s = new String(bytes, 0, n, UTF_8);
+    }
+    position = end;
+    return s;
+  }
+
+  /** 在轉換線程每次轉換一段，段與段之間讓出線程 */
+  @Override
+  public void run() {
+    if (cancelled) return;
+    final int total = text.length();
+    if (position >= total) {
+      deliver(null, total, total);
+      return;
+    }
+    String s = step();
+    deliver(s, position, total);
+    if (position < total) getWorker().post(this);
+    else deliver(null, total, total);
+  }
+
+  private void deliver(final String s, final int converted, final int total) {
+    handler.post(
+        new Runnable() {
+          @Override
+          public void run() {
+            if (cancelled) return;
+            if (s == null) listener.onFinish();
+            else listener.onChunk(s, converted, total);
+          }
+        });
+  }
+}
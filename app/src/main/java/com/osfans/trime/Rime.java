@@ -19,20 +19,38 @@
 package com.osfans.trime;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 
 import com.osfans.trime.ime.core.Trime;
+import dalvik.annotation.optimization.FastNative;
 
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 /**
  * Rime與OpenCC的Java實現
  *
+ * <p>Rime會話由引擎線程獨佔，所有會話調用都在該線程執行。每次動作後引擎把JNI快照拷貝到三份輪流使用的{@link SnapshotCopy 拷貝}之一，界面線程無鎖取用最新的一份，並原地更新環境與狀態，所以環境與狀態只能在界面線程讀取。
+ *
  * @see <a href="https://github.com/rime/librime">Rime</a> <a
  *     href="https://github.com/BYVoid/OpenCC">OpenCC</a>
  */
@@ -44,22 +62,47 @@ public class Rime {
     int sel_start;
     int sel_end;
     String preedit;
-    byte[] bytes;
+    // UTF-16偏移，由JNI換算好
+    int cursor;
+    int start;
+    int end;
+    private SnapshotCopy source;
+
+    void read(SnapshotCopy s) {
+      source = s;
+      preedit = null;
+      length = s.getInt(SNAPSHOT_COMPOSITION_LENGTH);
+      cursor_pos = s.getInt(SNAPSHOT_COMPOSITION_CURSOR_POS);
+      sel_start = s.getInt(SNAPSHOT_COMPOSITION_SEL_START);
+      sel_end = s.getInt(SNAPSHOT_COMPOSITION_SEL_END);
+      cursor = s.getInt(SNAPSHOT_COMPOSITION_CURSOR_POS_UTF16);
+      start = s.getInt(SNAPSHOT_COMPOSITION_SEL_START_UTF16);
+      end = s.getInt(SNAPSHOT_COMPOSITION_SEL_END_UTF16);
+    }
+
+    public String getPreedit() {
+      if (preedit == null && length > 0) preedit = source.getString(SNAPSHOT_SLOT_PREEDIT);
+      return preedit;
+    }
 
     public String getText() {
       if (length == 0) return "";
-      bytes = preedit.getBytes();
-      return preedit;
+      return getPreedit();
     }
 
     public int getStart() {
       if (length == 0) return 0;
-      return new String(bytes, 0, sel_start).length();
+      return start;
     }
 
     public int getEnd() {
       if (length == 0) return 0;
-      return new String(bytes, 0, sel_end).length();
+      return end;
+    }
+
+    public int getCursor() {
+      if (length == 0) return 0;
+      return cursor;
     }
   }
 
@@ -67,6 +110,25 @@ public class Rime {
   public static class RimeCandidate {
     String text;
     String comment;
+    private SnapshotCopy source;
+    private int slot = -1;
+
+    void read(SnapshotCopy s, int slot) {
+      source = s;
+      this.slot = slot;
+      text = null;
+      comment = null;
+    }
+
+    public String getText() {
+      if (text == null && slot >= 0) text = source.getString(slot);
+      return text;
+    }
+
+    public String getComment() {
+      if (comment == null && slot >= 0) comment = source.getString(slot + 1);
+      return comment;
+    }
   }
 
   /** Rime候選區，包含多個{@link RimeCandidate 候選項} */
@@ -78,6 +140,41 @@ public class Rime {
     int num_candidates;
     RimeCandidate[] candidates;
     String select_keys;
+    private SnapshotCopy source;
+    private boolean candidatesRead;
+
+    void read(SnapshotCopy s) {
+      source = s;
+      select_keys = null;
+      candidatesRead = false;
+      page_size = s.getInt(SNAPSHOT_MENU_PAGE_SIZE);
+      page_no = s.getInt(SNAPSHOT_MENU_PAGE_NO);
+      is_last_page = s.getInt(SNAPSHOT_MENU_IS_LAST_PAGE) != 0;
+      highlighted_candidate_index = s.getInt(SNAPSHOT_MENU_HIGHLIGHTED_CANDIDATE_INDEX);
+      num_candidates = s.getInt(SNAPSHOT_MENU_NUM_CANDIDATES);
+    }
+
+    /** 候選項在界面線程首次讀取時才更新，候選數不變時沿用上次的數組和對象 */
+    RimeCandidate[] getCandidates() {
+      if (!candidatesRead) {
+        RimeCandidate[] a = candidates;
+        if (a == null || a.length != num_candidates) {
+          a = new RimeCandidate[num_candidates];
+          for (int i = 0; i < num_candidates; i++) {
+            a[i] = candidates != null && i < candidates.length ? candidates[i] : new RimeCandidate();
+          }
+          candidates = a;
+        }
+        for (int i = 0; i < num_candidates; i++) a[i].read(source, SNAPSHOT_SLOT_CANDIDATES + 2 * i);
+        candidatesRead = true;
+      }
+      return candidates;
+    }
+
+    public String getSelectKeys() {
+      if (select_keys == null) select_keys = source.getString(SNAPSHOT_SLOT_SELECT_KEYS);
+      return select_keys;
+    }
   }
 
   /** Rime上屏的字符串 */
@@ -91,11 +188,48 @@ public class Rime {
   public static class RimeContext {
     int data_size;
     // v0.9
-    RimeComposition composition;
-    RimeMenu menu;
+    RimeComposition composition = new RimeComposition();
+    RimeMenu menu = new RimeMenu();
     // v0.9.2
     String commit_text_preview;
     String[] select_labels;
+    private int num_labels;
+    private boolean labelsRead;
+    private SnapshotCopy source;
+
+    void read(SnapshotCopy s) {
+      source = s;
+      composition.read(s);
+      menu.read(s);
+      num_labels = s.getInt(SNAPSHOT_NUM_LABELS);
+      commit_text_preview = null;
+      labelsRead = false;
+    }
+
+    public String getCommitTextPreview() {
+      if (commit_text_preview == null && source != null) {
+        commit_text_preview = source.getString(SNAPSHOT_SLOT_COMMIT_TEXT_PREVIEW);
+      }
+      return commit_text_preview;
+    }
+
+    public String[] getSelectLabels() {
+      if (!labelsRead) {
+        labelsRead = true;
+        if (num_labels == 0) {
+          select_labels = null;
+        } else {
+          if (select_labels == null || select_labels.length != num_labels) {
+            select_labels = new String[num_labels];
+          }
+          int slot = SNAPSHOT_SLOT_CANDIDATES + 2 * menu.num_candidates;
+          for (int i = 0; i < num_labels; i++) {
+            select_labels[i] = source.getString(slot + i, select_labels[i]);
+          }
+        }
+      }
+      return select_labels;
+    }
 
     public int size() {
       if (menu == null) return 0;
@@ -103,7 +237,7 @@ public class Rime {
     }
 
     public RimeCandidate[] getCandidates() {
-      return size() == 0 ? null : menu.candidates;
+      return size() == 0 ? null : menu.getCandidates();
     }
   }
 
@@ -120,6 +254,166 @@ public class Rime {
     boolean is_simplified;
     boolean is_traditional;
     boolean is_ascii_punct;
+    private SnapshotCopy source;
+    private boolean namesRead;
+
+    void read(SnapshotCopy s) {
+      source = s;
+      namesRead = false;
+      int bits = s.getInt(SNAPSHOT_STATUS_BITS);
+      is_disabled = (bits & SNAPSHOT_IS_DISABLED) != 0;
+      is_composing = (bits & SNAPSHOT_IS_COMPOSING) != 0;
+      is_ascii_mode = (bits & SNAPSHOT_IS_ASCII_MODE) != 0;
+      is_full_shape = (bits & SNAPSHOT_IS_FULL_SHAPE) != 0;
+      is_simplified = (bits & SNAPSHOT_IS_SIMPLIFIED) != 0;
+      is_traditional = (bits & SNAPSHOT_IS_TRADITIONAL) != 0;
+      is_ascii_punct = (bits & SNAPSHOT_IS_ASCII_PUNCT) != 0;
+    }
+
+    /** 方案不變時沿用上次的字符串 */
+    private void readNames() {
+      if (namesRead) return;
+      namesRead = true;
+      if (source == null) {
+        schema_id = schema_name = null;
+        return;
+      }
+      schema_id = source.getString(SNAPSHOT_SLOT_SCHEMA_ID, schema_id);
+      schema_name = source.getString(SNAPSHOT_SLOT_SCHEMA_NAME, schema_name);
+    }
+
+    public String getSchemaId() {
+      readNames();
+      return schema_id;
+    }
+
+    public String getSchemaName() {
+      readNames();
+      return schema_name;
+    }
+  }
+
+  /**
+   * JNI快照的一份拷貝
+   *
+   * <p>三份拷貝輪流使用：引擎線程寫入一份，一份等待交換，界面線程讀取一份。界面線程取用新的一份後才交出舊的，所以讀取中的拷貝不會被改寫；容量足夠時沿用原來的數組，穩定輸入時不再分配。
+   */
+  private static final class SnapshotCopy {
+    private byte[] data = new byte[0];
+    private ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.nativeOrder());
+    private int size;
+    /** 環境變化時遞增 */
+    int generation;
+
+    /** 拷貝直接緩衝區中的快照，容量不足時按緩衝區容量重新分配 */
+    void copy(ByteBuffer src, int size, int generation) {
+      if (data.length < size) {
+        data = new byte[src.capacity()];
+        buffer = ByteBuffer.wrap(data).order(ByteOrder.nativeOrder());
+      }
+      src.position(0);
+      src.get(data, 0, size);
+      this.size = size;
+      this.generation = generation;
+    }
+
+    /** 沒有會話時的空環境 */
+    void clear(int generation) {
+      size = 0;
+      this.generation = generation;
+    }
+
+    int getInt(int field) {
+      int offset = field << 2;
+      return offset + 4 > size ? 0 : buffer.getInt(offset);
+    }
+
+    /** 解碼第{@code slot}個字符串 */
+    String getString(int slot) {
+      return getString(slot, null);
+    }
+
+    /** 解碼第{@code slot}個字符串，與{@code previous}相同時直接返回它，不再分配 */
+    String getString(int slot, String previous) {
+      if (slot < 0 || slot >= getInt(SNAPSHOT_NUM_SLOTS)) return null;
+      int offset = getInt(SNAPSHOT_HEADER_SIZE + 2 * slot);
+      int length = getInt(SNAPSHOT_HEADER_SIZE + 2 * slot + 1);
+      if (length == 0) return null;
+      if (previous != null && matches(previous, offset, length)) return previous;
+      return new String(data, offset, length, UTF_8);
+    }
+
+    /** 字符串的UTF-8編碼是否與data中的這一段相同 */
+    private boolean matches(String s, int offset, int length) {
+      int end = offset + length;
+      int j = offset;
+      for (int i = 0; i < s.length(); i++) {
+        int c = s.codePointAt(i);
+        if (c >= 0x10000) i++;
+        int n = c < 0x80 ? 1 : c < 0x800 ? 2 : c < 0x10000 ? 3 : 4;
+        if (j + n > end) return false;
+        int shift = 6 * (n - 1);
+        int lead = n == 1 ? 0 : (0xf00 >> n) & 0xff; // 110xxxxx、1110xxxx、11110xxx
+        if ((data[j] & 0xff) != (lead | (c >> shift))) return false;
+        for (int k = 1; k < n; k++) {
+          shift -= 6;
+          if ((data[j + k] & 0xff) != (0x80 | ((c >> shift) & 0x3f))) return false;
+        }
+        j += n;
+      }
+      return j == end;
+    }
+  }
+
+  /** 異步按鍵的處理結果，在主線程回調 */
+  public interface KeyCallback {
+    void onKeyProcessed(boolean handled);
+  }
+
+  /** 等待引擎處理的按鍵 */
+  private static class PendingKey {
+    final int keycode;
+    final int mask;
+    final KeyCallback callback;
+    boolean handled;
+    // 同批按鍵的上屏文字記在本批第一個按鍵上
+    String commit;
+
+    PendingKey(int keycode, int mask, KeyCallback callback) {
+      this.keycode = keycode;
+      this.mask = mask;
+      this.callback = callback;
+    }
+  }
+
+  /** 引擎動作或宏中一步的結果 */
+  public static final class StepResult {
+    public final boolean handled;
+    public final String commit;
+    public final boolean composing;
+    /** 動作的返回值 */
+    final int result;
+    final boolean hasContext;
+
+    StepResult(int result, String commit, boolean composing, boolean hasContext) {
+      this.handled = result != 0;
+      this.result = result;
+      this.commit = commit;
+      this.composing = composing;
+      this.hasContext = hasContext;
+    }
+  }
+
+  /** 在引擎線程執行、寫入JNI快照的動作 */
+  private abstract static class Action implements Callable<StepResult> {
+    /** @return 快照所需的字節數 */
+    abstract int run(ByteBuffer buffer);
+
+    @Override
+    public StepResult call() {
+      publish(run(mBuffer));
+      return getResult();
+    }
   }
 
   /** Rime方案 */
@@ -174,13 +468,13 @@ public class Rime {
           List<String> options = (List<String>) o.get("options");
           for (int i = 0; i < options.size(); i++) {
             String s = options.get(i);
-            if (Rime.get_option(s)) {
+            if (Rime.getOption(s)) {
               o.put("value", i);
               break;
             }
           }
         } else {
-          o.put("value", Rime.get_option(o.get("name").toString()) ? 1 : 0);
+          o.put("value", Rime.getOption(o.get("name").toString()) ? 1 : 0);
         }
         switches.set(j, o);
       }
@@ -208,12 +502,129 @@ public class Rime {
   private static Rime self;
   private static Logger Log = Logger.getLogger(Rime.class.getSimpleName());
 
+  // 主線程待上屏的文字
   private static RimeCommit mCommit = new RimeCommit();
-  private static RimeContext mContext = new RimeContext();
-  private static RimeStatus mStatus = new RimeStatus();
-  private static RimeSchema mSchema;
-  private static List mSchemaList;
+  private static boolean mHasCommit;
+  // 快照拷貝的三緩衝：引擎線程寫好mBackCopy後與mMiddleCopy交換並標記爲新，界面線程取用時再與mFrontCopy交換
+  private static final SnapshotCopy[] mCopies = {
+    new SnapshotCopy(), new SnapshotCopy(), new SnapshotCopy()
+  };
+  private static final int COPY_NEW = 4;
+  private static int mBackCopy = 0;
+  private static final AtomicInteger mMiddleCopy = new AtomicInteger(1);
+  private static int mFrontCopy = 2;
+  // 界面線程讀取的環境與狀態，取用新拷貝時原地更新
+  private static final RimeContext mContext = new RimeContext();
+  private static final RimeStatus mStatus = new RimeStatus();
+  private static int mContextGeneration;
+
+  static {
+    mContext.read(mCopies[mFrontCopy]);
+    mStatus.read(mCopies[mFrontCopy]);
+  }
+
+  // 引擎線程最近一次動作的結果，只在引擎線程讀寫
+  private static int mPublished;
+  private static int mResult;
+  private static int mResultFlags;
+  private static String mResultCommit;
+  private static boolean mComposing;
+  private static byte[] mCommitBytes = new byte[256];
+  private static volatile RimeSchema mSchema;
+  private static volatile List mSchemaList;
+  // 選項狀態表，方案加載時清空，之後隨option通知更新
+  private static Map<String, Boolean> mOptions = new ConcurrentHashMap<String, Boolean>();
+  // 已打開的配置句柄，供ConfigMap按需讀取，引擎線程與主線程都會訪問，以自身爲鎖
+  private static Map<String, Long> mConfigHandles = new HashMap<String, Long>();
+  // 由Java設置的屬性，讀取時不必等待引擎線程
+  private static Map<String, String> mProperties = new ConcurrentHashMap<String, String>();
   private static boolean mOnMessage;
+  // librime可能在任意線程通知，消息先入隊，再在主線程依次處理
+  private static final Queue<String[]> mMessages = new ConcurrentLinkedQueue<String[]>();
+  private static final AtomicBoolean mMessagePosted = new AtomicBoolean();
+  private static final Handler mMainHandler = new Handler(Looper.getMainLooper());
+  private static final Runnable mDrainMessages =
+      new Runnable() {
+        @Override
+        public void run() {
+          drainMessages();
+        }
+      };
+
+  // 引擎線程，獨佔Rime會話與JNI快照緩衝區
+  private static HandlerThread mEngineThread;
+  private static Handler mEngineHandler;
+  private static ByteBuffer mBuffer;
+  // 軟鍵盤按鍵先入隊，引擎線程成批處理，結果按序回到主線程
+  private static final Queue<PendingKey> mPendingKeys = new ConcurrentLinkedQueue<PendingKey>();
+  private static final List<PendingKey> mBatch = new ArrayList<PendingKey>();
+  private static int[] mBatchKeycodes = new int[16];
+  private static int[] mBatchMasks = new int[16];
+  private static final Queue<PendingKey> mKeyResults = new ConcurrentLinkedQueue<PendingKey>();
+  private static final AtomicBoolean mKeysPosted = new AtomicBoolean();
+  private static final AtomicBoolean mKeyResultsPosted = new AtomicBoolean();
+  // 正在主線程回調按鍵結果，回調中再調用Rime時不嵌套回調後面的按鍵
+  private static boolean mDraining;
+  private static final Runnable mProcessKeys =
+      new Runnable() {
+        @Override
+        public void run() {
+          processKeys();
+        }
+      };
+  private static final Runnable mDrainKeyResults =
+      new Runnable() {
+        @Override
+        public void run() {
+          drainKeyResults();
+        }
+      };
+
+  // 環境快照的佈局，須與librime_jni/snapshot.h保持一致
+  private static final int SNAPSHOT_SIZE = 0;
+  private static final int SNAPSHOT_FLAGS = 1;
+  private static final int SNAPSHOT_COMPOSITION_LENGTH = 2;
+  private static final int SNAPSHOT_COMPOSITION_CURSOR_POS = 3;
+  private static final int SNAPSHOT_COMPOSITION_SEL_START = 4;
+  private static final int SNAPSHOT_COMPOSITION_SEL_END = 5;
+  private static final int SNAPSHOT_MENU_PAGE_SIZE = 6;
+  private static final int SNAPSHOT_MENU_PAGE_NO = 7;
+  private static final int SNAPSHOT_MENU_IS_LAST_PAGE = 8;
+  private static final int SNAPSHOT_MENU_HIGHLIGHTED_CANDIDATE_INDEX = 9;
+  private static final int SNAPSHOT_MENU_NUM_CANDIDATES = 10;
+  private static final int SNAPSHOT_NUM_LABELS = 11;
+  private static final int SNAPSHOT_STATUS_BITS = 12;
+  private static final int SNAPSHOT_NUM_SLOTS = 13;
+  private static final int SNAPSHOT_RESULT = 14;
+  private static final int SNAPSHOT_GENERATION = 15;
+  private static final int SNAPSHOT_COMPOSITION_CURSOR_POS_UTF16 = 16;
+  private static final int SNAPSHOT_COMPOSITION_SEL_START_UTF16 = 17;
+  private static final int SNAPSHOT_COMPOSITION_SEL_END_UTF16 = 18;
+  private static final int SNAPSHOT_HEADER_SIZE = 32;
+
+  private static final int SNAPSHOT_HAS_CONTEXT = 1;
+  private static final int SNAPSHOT_HAS_STATUS = 1 << 1;
+  private static final int SNAPSHOT_HAS_COMMIT = 1 << 2;
+  private static final int SNAPSHOT_UNCHANGED = 1 << 3;
+
+  private static final int SNAPSHOT_IS_DISABLED = 1;
+  private static final int SNAPSHOT_IS_COMPOSING = 1 << 1;
+  private static final int SNAPSHOT_IS_ASCII_MODE = 1 << 2;
+  private static final int SNAPSHOT_IS_FULL_SHAPE = 1 << 3;
+  private static final int SNAPSHOT_IS_SIMPLIFIED = 1 << 4;
+  private static final int SNAPSHOT_IS_TRADITIONAL = 1 << 5;
+  private static final int SNAPSHOT_IS_ASCII_PUNCT = 1 << 6;
+
+  private static final int SNAPSHOT_SLOT_PREEDIT = 0;
+  private static final int SNAPSHOT_SLOT_SELECT_KEYS = 1;
+  private static final int SNAPSHOT_SLOT_COMMIT_TEXT_PREVIEW = 2;
+  private static final int SNAPSHOT_SLOT_SCHEMA_ID = 3;
+  private static final int SNAPSHOT_SLOT_SCHEMA_NAME = 4;
+  private static final int SNAPSHOT_SLOT_COMMIT_TEXT = 5;
+  private static final int SNAPSHOT_SLOT_CANDIDATES = 6;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static int mGeneration;
 
   static {
     System.loadLibrary("opencc");
@@ -229,10 +640,37 @@ public class Rime {
 
   public static void setShowSwitches(boolean show) {
     showSwitches = show;
+    mGeneration++;
+  }
+
+  /**
+   * 獲取環境的版本號，編碼、候選、狀態或選項變化時遞增
+   *
+   * @return 版本號，未變時界面可跳過刷新
+   */
+  public static int getGeneration() {
+    adopt();
+    return mContextGeneration + mGeneration;
+  }
+
+  /**
+   * 取用引擎線程最近寫好的快照拷貝，原地更新環境與狀態
+   *
+   * <p>只在界面線程取用，交出的舊拷貝引擎線程纔會改寫；沒有新拷貝時不做任何事
+   */
+  private static void adopt() {
+    if ((mMiddleCopy.get() & COPY_NEW) == 0) return;
+    if (Looper.myLooper() != Looper.getMainLooper()) return;
+    mFrontCopy = mMiddleCopy.getAndSet(mFrontCopy) & ~COPY_NEW;
+    SnapshotCopy c = mCopies[mFrontCopy];
+    mContext.read(c);
+    mStatus.read(c);
+    mContextGeneration = c.generation;
   }
 
   public static boolean hasMenu() {
-    return isComposing() && mContext.menu.num_candidates != 0;
+    adopt();
+    return mStatus.is_composing && mContext.menu.num_candidates != 0;
   }
 
   public static boolean hasLeft() {
@@ -248,26 +686,29 @@ public class Rime {
   }
 
   public static boolean isComposing() {
+    adopt();
     return mStatus.is_composing;
   }
 
   public static boolean isAsciiMode() {
+    adopt();
     return mStatus.is_ascii_mode;
   }
 
   public static RimeComposition getComposition() {
-    if (mContext == null) return null;
+    adopt();
     return mContext.composition;
   }
 
   public static String getCompositionText() {
     RimeComposition composition = getComposition();
-    return (composition == null) ? "" : composition.preedit;
+    return (composition == null) ? "" : composition.getPreedit();
   }
 
   public static String getComposingText() {
-    if (mContext == null || mContext.commit_text_preview == null) return "";
-    return mContext.commit_text_preview;
+    adopt();
+    String s = mContext.getCommitTextPreview();
+    return s == null ? "" : s;
   }
 
   public Rime(Context context, boolean full_check) {
@@ -275,39 +716,192 @@ public class Rime {
     self = this;
   }
 
+  /** 啓動引擎線程，只啓動一次，之後重新部署也沿用 */
+  private static synchronized void startEngine() {
+    if (mEngineThread != null) return;
+    mEngineThread = new HandlerThread("RimeEngine");
+    mEngineThread.start();
+    mEngineHandler = new Handler(mEngineThread.getLooper());
+  }
+
+  private static boolean isEngineThread() {
+    return mEngineThread == null || Looper.myLooper() == mEngineThread.getLooper();
+  }
+
+  /**
+   * 在引擎線程執行並等待結果，已在引擎線程時直接執行
+   *
+   * <p>主線程調用時，先回調在此之前處理完的異步按鍵，保證上屏順序
+   */
+  private static <T> T call(Callable<T> task) {
+    T t;
+    if (isEngineThread()) {
+      try {
+        t = task.call();
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    } else {
+      FutureTask<T> future = new FutureTask<T>(task);
+      mEngineHandler.post(future);
+      boolean interrupted = false;
+      while (true) {
+        try {
+          t = future.get();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        } catch (ExecutionException e) {
+          throw new RuntimeException(e.getCause());
+        }
+      }
+      if (interrupted) Thread.currentThread().interrupt();
+    }
+    if (Looper.myLooper() == Looper.getMainLooper()) drainKeyResults();
+    return t;
+  }
+
+  private static void call(final Runnable task) {
+    call(
+        new Callable<Void>() {
+          @Override
+          public Void call() {
+            task.run();
+            return null;
+          }
+        });
+  }
+
+  /** 執行動作，取出上屏文字，返回動作的返回值 */
+  private static int perform(Action action) {
+    StepResult r = call(action);
+    addCommit(r.commit);
+    return r.result;
+  }
+
+  private static void addCommit(String text) {
+    if (text == null) return;
+    mCommit.text = mHasCommit ? mCommit.text + text : text;
+    mHasCommit = true;
+  }
+
   private static void initSchema() {
     mSchemaList = get_schema_list();
-    String schema_id = getSchemaId();
-    mSchema = new RimeSchema(schema_id);
-    getStatus();
+    String schema_id = get_current_schema();
+    mOptions.clear();
+    RimeSchema schema = new RimeSchema(schema_id);
+    schema.getValue();
+    mSchema = schema;
+    getContexts();
   }
 
-  private static boolean getStatus() {
-    mSchema.getValue();
-    return get_status(mStatus);
+  private static ByteBuffer allocateSnapshot(int size) {
+    int capacity = Integer.highestOneBit(size - 1) << 1;
+    ByteBuffer buffer = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+    invalidateSnapshot(buffer);
+    return buffer;
   }
 
-  private static void init(Context context, boolean full_check) {
-    mOnMessage = false;
+  /** 標記緩衝區中沒有有效的快照，JNI下次寫入完整的環境 */
+  private static void invalidateSnapshot(ByteBuffer buffer) {
+    buffer.putInt(SNAPSHOT_GENERATION << 2, -1);
+  }
 
-    // Initialize librime APIs
-    setup(Config.get(context).getSharedDataDir(), Config.get(context).getUserDataDir());
-    initialize(Config.get(context).getSharedDataDir(), Config.get(context).getUserDataDir());
-    
-    check(full_check);
-    set_notification_handler();
-    if (!find_session()) {
-      if (create_session() == 0) {
-        Log.severe("Error creating rime session");
-        return;
+  private static int getBufferInt(int field) {
+    return mBuffer.getInt(field << 2);
+  }
+
+  /**
+   * 讀取JNI寫入直接緩衝區的上屏文字、環境與狀態，空間不足時擴容重讀，只在引擎線程調用
+   *
+   * <p>環境或狀態變化時拷貝到空閒的一份拷貝並交給界面線程，結果留在引擎線程由{@link #getResult()}取得
+   *
+   * @param size 快照所需的字節數
+   */
+  private static void publish(int size) {
+    // 動作的返回值總會寫入頭部，擴容重讀前先取出
+    mResult = size < 0 ? 0 : getBufferInt(SNAPSHOT_RESULT);
+    mResultFlags = 0;
+    mResultCommit = null;
+    if (size > mBuffer.capacity()) {
+      mBuffer = allocateSnapshot(size);
+      size = get_snapshot(mBuffer);
+    }
+    if (size < 0 || size > mBuffer.capacity()) return;
+    int flags = getBufferInt(SNAPSHOT_FLAGS);
+    mResultFlags = flags;
+    if ((flags & SNAPSHOT_HAS_COMMIT) != 0) {
+      int offset = getBufferInt(SNAPSHOT_HEADER_SIZE + 2 * SNAPSHOT_SLOT_COMMIT_TEXT);
+      int length = getBufferInt(SNAPSHOT_HEADER_SIZE + 2 * SNAPSHOT_SLOT_COMMIT_TEXT + 1);
+      if (length > 0) {
+        if (mCommitBytes.length < length) mCommitBytes = new byte[length];
+        mBuffer.position(offset);
+        mBuffer.get(mCommitBytes, 0, length);
+        mResultCommit = new String(mCommitBytes, 0, length, UTF_8);
       }
     }
-    initSchema();
+    if ((flags & SNAPSHOT_UNCHANGED) != 0) return;
+    mComposing = (getBufferInt(SNAPSHOT_STATUS_BITS) & SNAPSHOT_IS_COMPOSING) != 0;
+    mCopies[mBackCopy].copy(mBuffer, size, ++mPublished);
+    swapBackCopy();
+  }
+
+  /** 會話銷毀後發佈空環境，只在引擎線程調用 */
+  private static void publishEmpty() {
+    mComposing = false;
+    mCopies[mBackCopy].clear(++mPublished);
+    swapBackCopy();
+  }
+
+  private static void swapBackCopy() {
+    mBackCopy = mMiddleCopy.getAndSet(mBackCopy | COPY_NEW) & ~COPY_NEW;
+  }
+
+  /** 引擎線程最近一次動作的結果 */
+  private static StepResult getResult() {
+    return new StepResult(
+        mResult, mResultCommit, mComposing, (mResultFlags & SNAPSHOT_HAS_CONTEXT) != 0);
+  }
+
+  private static void init(final Context context, final boolean full_check) {
+    mOnMessage = false;
+    startEngine();
+    call(
+        new Runnable() {
+          @Override
+          public void run() {
+            if (mBuffer == null) mBuffer = allocateSnapshot(16 * 1024);
+            // Initialize librime APIs
+            setup(Config.get(context).getSharedDataDir(), Config.get(context).getUserDataDir());
+            initialize(Config.get(context).getSharedDataDir(), Config.get(context).getUserDataDir());
+
+            check(full_check);
+            set_notification_handler();
+            if (!find_session()) {
+              if (create_session() == 0) {
+                Log.severe("Error creating rime session");
+                return;
+              }
+            }
+            initSchema();
+          }
+        });
   }
 
   public static void destroy() {
-    destroy_session();
-    finalize1();
+    closeConfigs();
+    opencc_release(null);
+    call(
+        new Runnable() {
+          @Override
+          public void run() {
+            destroy_session();
+            finalize1();
+            publishEmpty();
+            mProperties.clear();
+            if (mBuffer != null) invalidateSnapshot(mBuffer);
+          }
+        });
     self = null;
   }
 
@@ -315,14 +909,22 @@ public class Rime {
     return mCommit.text;
   }
 
+  /** 取出待上屏的文字 */
   public static boolean getCommit() {
-    return get_commit(mCommit);
+    boolean b = mHasCommit;
+    mHasCommit = false;
+    return b;
   }
 
   private static boolean getContexts() {
-    boolean b = get_context(mContext);
-    getStatus();
-    return b;
+    return call(
+            new Action() {
+              @Override
+              int run(ByteBuffer buffer) {
+                return get_snapshot(buffer);
+              }
+            })
+        .hasContext;
   }
 
   public static boolean isVoidKeycode(int keycode) {
@@ -330,17 +932,98 @@ public class Rime {
     return keycode <= 0 || keycode == XK_VoidSymbol;
   }
 
-  private static boolean onKey(int keycode, int mask) {
+  public static boolean onKey(final int keycode, final int mask) {
     if (isVoidKeycode(keycode)) return false;
-    boolean b = process_key(keycode, mask);
+    boolean b =
+        perform(
+                new Action() {
+                  @Override
+                  int run(ByteBuffer buffer) {
+                    return process_key_snapshot(keycode, mask, buffer);
+                  }
+                })
+            != 0;
     Log.info("b=" + b + ",keycode=" + keycode + ",mask=" + mask);
-    getContexts();
     return b;
   }
 
-  public static boolean onKey(int[] event) {
-    if (event != null && event.length == 2) return onKey(event[0], event[1]);
-    return false;
+  /**
+   * 把按鍵交給引擎線程異步處理，處理完後在主線程回調
+   *
+   * @param keycode Rime鍵碼
+   * @param mask Rime修飾鍵
+   * @param callback 結果回調，回調前待上屏文字已可用{@link #getCommit()}取出
+   * @return 是否已入隊，無效按鍵返回false且不回調
+   */
+  public static boolean postKey(int keycode, int mask, KeyCallback callback) {
+    if (isVoidKeycode(keycode)) return false;
+    if (mEngineHandler == null) return false;
+    mPendingKeys.offer(new PendingKey(keycode, mask, callback));
+    if (mKeysPosted.compareAndSet(false, true)) mEngineHandler.post(mProcessKeys);
+    return true;
+  }
+
+  /**
+   * 在引擎線程合併處理隊列中積壓的按鍵
+   *
+   * <p>長按重複或連續輸入時，上一批處理期間到達的按鍵一次交給JNI，只讀取一次快照。遇到Rime未處理的按鍵即分批，保證它的後備處理先於之後按鍵的上屏。
+   */
+  private static void processKeys() {
+    mKeysPosted.set(false);
+    PendingKey key;
+    while ((key = mPendingKeys.poll()) != null) mBatch.add(key);
+    int n = mBatch.size();
+    if (n == 0) return;
+    if (mBatchKeycodes.length < n) {
+      mBatchKeycodes = new int[n];
+      mBatchMasks = new int[n];
+    }
+    for (int i = 0; i < n; i++) {
+      key = mBatch.get(i);
+      mBatchKeycodes[i] = key.keycode;
+      mBatchMasks[i] = key.mask;
+    }
+    int i = 0;
+    while (i < n) {
+      publish(process_key_batch(mBatchKeycodes, mBatchMasks, i, n - i, mBuffer));
+      int handled = Math.max(0, Math.min(mResult, n - i));
+      int end = Math.min(n, i + handled + 1);
+      mBatch.get(i).commit = mResultCommit;
+      for (int j = i; j < end; j++) {
+        key = mBatch.get(j);
+        key.handled = j < i + handled;
+        mKeyResults.offer(key);
+      }
+      i = end;
+    }
+    mBatch.clear();
+    if (mKeyResultsPosted.compareAndSet(false, true)) mMainHandler.post(mDrainKeyResults);
+  }
+
+  /**
+   * 在主線程按處理順序回調異步按鍵的結果，全部回調後才刷新一次界面
+   *
+   * <p>回調中調用Rime時不再嵌套回調，之後的按鍵等當前回調結束後由外層繼續處理
+   */
+  private static void drainKeyResults() {
+    if (mDraining) return;
+    mDraining = true;
+    mKeyResultsPosted.set(false);
+    Trime trime = Trime.getService();
+    if (trime != null) trime.beginBatchEdit(); //同一批按鍵的上屏合併爲一次編輯
+    try {
+      PendingKey key;
+      int count = 0;
+      while ((key = mKeyResults.poll()) != null) {
+        addCommit(key.commit);
+        if (key.callback != null) key.callback.onKeyProcessed(key.handled);
+        count++;
+      }
+      if (count > 0 && trime != null) trime.onKeysProcessed();
+    } finally {
+      if (trime != null) trime.endBatchEdit();
+      mDraining = false;
+    }
   }
 
   public static boolean isValidText(CharSequence text) {
@@ -351,23 +1034,85 @@ public class Rime {
 
   public static boolean onText(CharSequence text) {
     if (!isValidText(text)) return false;
-    boolean b = simulate_key_sequence(text.toString().replace("{}", "{braceleft}{braceright}"));
+    final String sequence = text.toString().replace("{}", "{braceleft}{braceright}");
+    boolean b =
+        perform(
+                new Action() {
+                  @Override
+                  int run(ByteBuffer buffer) {
+                    return simulate_key_sequence_snapshot(sequence, buffer);
+                  }
+                })
+            != 0;
     Log.info("b=" + b + ",input=" + text);
-    getContexts();
     return b;
   }
 
+  /**
+   * 在引擎線程依次執行宏中的按鍵和按鍵序列，整段只等待引擎一次
+   *
+   * <p>遇到引擎未處理的按鍵即停止，調用者處理該按鍵後再從下一步繼續，與逐個按鍵處理的順序一致。
+   *
+   * @param macro 步驟表
+   * @param start 起始步驟
+   * @param end 結束步驟，不含由Trime處理的事件
+   * @return 已執行各步的結果，最後一步可能是未處理的按鍵，上屏文字由調用者按順序上屏
+   */
+  public static StepResult[] runMacro(final Macro macro, final int start, final int end) {
+    final int[] keycodes = new int[end - start];
+    final int[] masks = new int[end - start];
+    for (int i = start; i < end; i++) {
+      if (macro.getType(i) != Macro.KEY) continue;
+      Event event = macro.getEvent(i);
+      keycodes[i - start] = Event.getRimeKeycode(event.getCode());
+      masks[i - start] = Event.getRimeModifier(event.getMask());
+    }
+    return call(
+        new Callable<StepResult[]>() {
+          @Override
+          public StepResult[] call() {
+            StepResult[] results = new StepResult[end - start];
+            for (int i = start; i < end; i++) {
+              boolean key = macro.getType(i) == Macro.KEY;
+              String text = macro.getText(i);
+              int size;
+              if (key && !isVoidKeycode(keycodes[i - start])) {
+                size = process_key_snapshot(keycodes[i - start], masks[i - start], mBuffer);
+              } else if (!key && isValidText(text)) {
+                size = simulate_key_sequence_snapshot(text, mBuffer);
+              } else {
+                results[i - start] = new StepResult(0, null, mComposing, false);
+                if (key) return stop(results, i - start + 1);
+                continue;
+              }
+              publish(size);
+              results[i - start] = getResult();
+              if (key && mResult == 0) return stop(results, i - start + 1);
+            }
+            return results;
+          }
+
+          private StepResult[] stop(StepResult[] results, int steps) {
+            return Arrays.copyOf(results, steps);
+          }
+        });
+  }
+
   public static RimeCandidate[] getCandidates() {
     if (!isComposing() && showSwitches) return mSchema.getCandidates();
     return mContext.getCandidates();
   }
 
   public static String[] getSelectLabels() {
-    if (mContext != null && mContext.size() > 0) {
-      if (mContext.select_labels != null) return mContext.select_labels;
-      if (mContext.menu.select_keys != null) return mContext.menu.select_keys.split("\\B");
-      int n = mContext.size();
-      String[] labels = new String[n];
+    adopt();
+    RimeContext context = mContext;
+    if (context.size() > 0) {
+      String[] labels = context.getSelectLabels();
+      if (labels != null) return labels;
+      String select_keys = context.menu.getSelectKeys();
+      if (select_keys != null) return select_keys.split("\\B");
+      int n = context.size();
+      labels = new String[n];
       for (int i = 0; i < n; i++) {
         labels[i] = String.valueOf((i + 1) % 10);
       }
@@ -377,33 +1122,69 @@ public class Rime {
   }
 
   public static int getCandHighlightIndex() {
-    return isComposing() ? mContext.menu.highlighted_candidate_index : -1;
+    adopt();
+    return mStatus.is_composing ? mContext.menu.highlighted_candidate_index : -1;
   }
 
   public static boolean commitComposition() {
-    boolean b = commit_composition();
-    getContexts();
-    return b;
+    return perform(
+            new Action() {
+              @Override
+              int run(ByteBuffer buffer) {
+                return commit_composition_snapshot(buffer);
+              }
+            })
+        != 0;
   }
 
   public static void clearComposition() {
-    clear_composition();
-    getContexts();
+    perform(
+        new Action() {
+          @Override
+          int run(ByteBuffer buffer) {
+            return clear_composition_snapshot(buffer);
+          }
+        });
   }
 
-  public static boolean selectCandidate(int index) {
-    boolean b = select_candidate_on_current_page(index);
-    getContexts();
-    return b;
+  public static boolean selectCandidate(final int index) {
+    return perform(
+            new Action() {
+              @Override
+              int run(ByteBuffer buffer) {
+                return select_candidate_snapshot(index, buffer);
+              }
+            })
+        != 0;
   }
 
-  public static void setOption(String option, boolean value) {
+  public static void setOption(final String option, final boolean value) {
     if (mOnMessage) return;
-    set_option(option, value);
+    call(
+        new Runnable() {
+          @Override
+          public void run() {
+            set_option(option, value);
+          }
+        });
+    mOptions.put(option, value);
   }
 
-  public static boolean getOption(String option) {
-    return get_option(option);
+  /** 從選項狀態表讀取，未緩存的選項才調用JNI */
+  public static boolean getOption(final String option) {
+    Boolean value = mOptions.get(option);
+    if (value == null) {
+      value =
+          call(
+              new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                  return get_option(option);
+                }
+              });
+      mOptions.put(option, value);
+    }
+    return value;
   }
 
   public static void toggleOption(String option) {
@@ -415,17 +1196,44 @@ public class Rime {
     mSchema.toggleOption(i);
   }
 
-  public static void setProperty(String prop, String value) {
+  public static void setProperty(final String prop, final String value) {
     if (mOnMessage) return;
-    set_property(prop, value);
+    call(
+        new Runnable() {
+          @Override
+          public void run() {
+            set_property(prop, value);
+          }
+        });
+    if (value == null) mProperties.remove(prop);
+    else mProperties.put(prop, value);
   }
 
-  public static String getProperty(String prop) {
-    return get_property(prop);
+  /** 讀取設置過的屬性，未設置過的屬性才等待引擎線程 */
+  public static String getProperty(final String prop) {
+    String value = mProperties.get(prop);
+    if (value != null) return value;
+    return call(
+        new Callable<String>() {
+          @Override
+          public String call() {
+            return get_property(prop);
+          }
+        });
   }
 
+  /** 從快照的狀態讀取，會話尚未建立時才等待引擎線程 */
   public static String getSchemaId() {
-    return get_current_schema();
+    adopt();
+    String schema_id = mStatus.getSchemaId();
+    if (schema_id != null) return schema_id;
+    return call(
+        new Callable<String>() {
+          @Override
+          public String call() {
+            return get_current_schema();
+          }
+        });
   }
 
   private static boolean isEmpty(String s) {
@@ -437,10 +1245,11 @@ public class Rime {
   }
 
   public static String[] getSchemaNames() {
-    int n = mSchemaList.size();
+    List schemaList = mSchemaList;
+    int n = schemaList.size();
     String[] names = new String[n];
     int i = 0;
-    for (Object o : mSchemaList) {
+    for (Object o : schemaList) {
       Map<String, String> m = (Map<String, String>) o;
       names[i++] = m.get("name");
     }
@@ -459,20 +1268,28 @@ public class Rime {
   }
 
   public static String getSchemaName() {
-    return mStatus.schema_name;
+    adopt();
+    return mStatus.getSchemaName();
   }
 
-  private static boolean selectSchema(String schema_id) {
-    boolean b = select_schema(schema_id);
-    getContexts();
-    return b;
+  private static boolean selectSchema(final String schema_id) {
+    return call(
+        new Callable<Boolean>() {
+          @Override
+          public Boolean call() {
+            boolean b = select_schema(schema_id);
+            getContexts();
+            return b;
+          }
+        });
   }
 
   public static boolean selectSchema(int id) {
-    int n = mSchemaList.size();
+    List schemaList = mSchemaList;
+    int n = schemaList.size();
     if (id < 0 || id >= n) return false;
     String schema_id = getSchemaId();
-    Map<String, String> m = (Map<String, String>) mSchemaList.get(id);
+    Map<String, String> m = (Map<String, String>) schemaList.get(id);
     String target = m.get("schema_id");
     if (target.contentEquals(schema_id)) return false;
     return selectSchema(target);
@@ -491,63 +1308,189 @@ public class Rime {
   }
 
   public static String RimeGetInput() {
-    String s = get_input();
+    String s =
+        call(
+            new Callable<String>() {
+              @Override
+              public String call() {
+                return get_input();
+              }
+            });
     return s == null ? "" : s;
   }
 
   public static int RimeGetCaretPos() {
-    return get_caret_pos();
+    return call(
+        new Callable<Integer>() {
+          @Override
+          public Integer call() {
+            return get_caret_pos();
+          }
+        });
   }
 
-  public static void RimeSetCaretPos(int caret_pos) {
-    set_caret_pos(caret_pos);
-    getContexts();
+  public static void RimeSetCaretPos(final int caret_pos) {
+    perform(
+        new Action() {
+          @Override
+          int run(ByteBuffer buffer) {
+            return set_caret_pos_snapshot(caret_pos, buffer);
+          }
+        });
   }
 
+  /**
+   * 接收librime的通知，可能在引擎線程或維護線程調用
+   *
+   * <p>選項狀態立即更新，其餘處理放入隊列，由主線程執行，以免阻塞或打亂輸入流程
+   */
   public static void onMessage(String message_type, String message_value) {
-    mOnMessage = true;
     Log.info(String.format("message: [%s] %s", message_type, message_value));
+    if (message_type.equals("option")) {
+      boolean value = !message_value.startsWith("!");
+      mOptions.put(message_value.substring(value ? 0 : 1), value);
+    }
+    mMessages.offer(new String[] {message_type, message_value});
+    if (mMessagePosted.compareAndSet(false, true)) mMainHandler.post(mDrainMessages);
+  }
+
+  private static void drainMessages() {
+    mMessagePosted.set(false);
+    mOnMessage = true;
+    String[] message;
+    while ((message = mMessages.poll()) != null) handleMessage(message[0], message[1]);
+    mOnMessage = false;
+  }
+
+  private static void handleMessage(String message_type, String message_value) {
+    mGeneration++;
     Trime trime = Trime.getService();
     switch (message_type) {
       case "schema":
         Config.clean();
-        initSchema();
+        call(
+            new Runnable() {
+              @Override
+              public void run() {
+                initSchema();
+              }
+            });
         if (trime != null) {
           trime.initKeyboard();
           trime.updateComposing();
         }
         break;
       case "option":
-        getStatus();
+        boolean value = !message_value.startsWith("!");
+        String option = message_value.substring(value ? 0 : 1);
+        if (mSchema != null) mSchema.getValue();
         getContexts(); //切換中英文、簡繁體時更新候選
-        if (trime != null) {
-          boolean value = !message_value.startsWith("!");
-          String option = message_value.substring(value ? 0 : 1);
-          trime.onOptionChanged(option, value);
-        }
+        if (trime != null) trime.onOptionChanged(option, value);
         break;
     }
-    mOnMessage = false;
   }
 
-  public static String openccConvert(String line, String name) {
+  /** 獲取OpenCC配置文件的路徑，不存在時返回null */
+  private static String getOpenccConfig(String name) {
     if (name != null && name.length() > 0) {
       Trime trime = Trime.getService();
       File f = new File(Config.get(trime).getResDataDir("opencc"), name);
-      if (f.exists()) return opencc_convert(line, f.getAbsolutePath());
+      if (f.exists()) return f.getAbsolutePath();
     }
+    return null;
+  }
+
+  public static String openccConvert(String line, String name) {
+    String config = getOpenccConfig(name);
+    if (config != null) return opencc_convert(line, config);
     return line;
   }
 
-  public static void check(boolean full_check) {
-    if (start_maintenance(full_check) && is_maintenance_mode())
-    {
-       join_maintenance_thread();
+  /** 以同一轉換器批量轉換多行文字 */
+  public static String[] openccConvert(String[] lines, String name) {
+    String config = getOpenccConfig(name);
+    if (config != null) return opencc_convert_many(lines, config);
+    return lines;
+  }
+
+  /**
+   * 在轉換線程分段轉換長文本，每轉好一段在當前線程回調一次
+   *
+   * @return 轉換流，可用於取消；配置不存在時把原文作爲一段回調並返回null
+   */
+  public static OpenccStream openccConvert(
+      CharSequence text, String name, OpenccStream.Listener listener) {
+    String config = getOpenccConfig(name);
+    if (config == null) {
+      listener.onChunk(text.toString(), text.length(), text.length());
+      listener.onFinish();
+      return null;
     }
-}
+    OpenccStream stream = new OpenccStream(text, config, listener);
+    stream.start();
+    return stream;
+  }
+
+  /** 獲取配置的句柄，未打開時打開並緩存，失敗時返回0 */
+  public static long getConfigHandle(String name) {
+    synchronized (mConfigHandles) {
+      Long handle = mConfigHandles.get(name);
+      if (handle == null) {
+        handle = config_open(name);
+        if (handle != 0) mConfigHandles.put(name, handle);
+      }
+      return handle;
+    }
+  }
+
+  /** 關閉配置句柄，重新部署後再讀取時會重新打開 */
+  public static void closeConfig(String name) {
+    synchronized (mConfigHandles) {
+      Long handle = mConfigHandles.remove(name);
+      if (handle != null) config_close(handle);
+    }
+  }
+
+  private static void closeConfigs() {
+    synchronized (mConfigHandles) {
+      for (long handle : mConfigHandles.values()) config_close(handle);
+      mConfigHandles.clear();
+    }
+  }
+
+  /**
+   * 獲取按需讀取的配置節點
+   *
+   * @param name 配置名
+   * @param key 節點路徑，空字符串爲根節點
+   * @return 節點不是Map時返回null
+   */
+  public static Map<String, Object> getConfigMap(String name, String key) {
+    String[] keys = config_get_keys(getConfigHandle(name), key);
+    return keys == null ? null : new ConfigMap(name, key, keys);
+  }
+
+  public static void check(final boolean full_check) {
+    call(
+        new Runnable() {
+          @Override
+          public void run() {
+            if (start_maintenance(full_check) && is_maintenance_mode()) {
+              join_maintenance_thread();
+            }
+          }
+        });
+  }
 
   public static boolean syncUserData(Context context) {
-    boolean b = sync_user_data();
+    boolean b =
+        call(
+            new Callable<Boolean>() {
+              @Override
+              public Boolean call() {
+                return sync_user_data();
+              }
+            });
     destroy();
     get(context, true);
     return b;
@@ -594,6 +1537,7 @@ public class Rime {
   public static native void cleanup_all_sessions();
 
   // input
+  @FastNative
   public static native boolean process_key(int keycode, int mask);
 
   public static native boolean commit_composition();
@@ -601,11 +1545,32 @@ public class Rime {
   public static native void clear_composition();
 
   // output
-  public static native boolean get_commit(RimeCommit commit);
+  @FastNative
+  public static native int get_snapshot(ByteBuffer buffer);
+
+  // input with snapshot
+  @FastNative
+  public static native int process_key_snapshot(int keycode, int mask, ByteBuffer buffer);
+
+  /** 依次處理按鍵，遇到未處理的按鍵即停止，返回值爲此前已處理的按鍵數 */
+  @FastNative
+  public static native int process_key_batch(
+      int[] keycodes, int[] masks, int offset, int count, ByteBuffer buffer);
+
+  @FastNative
+  public static native int simulate_key_sequence_snapshot(String key_sequence, ByteBuffer buffer);
+
+  @FastNative
+  public static native int commit_composition_snapshot(ByteBuffer buffer);
 
-  public static native boolean get_context(RimeContext context);
+  @FastNative
+  public static native int clear_composition_snapshot(ByteBuffer buffer);
 
-  public static native boolean get_status(RimeStatus status);
+  @FastNative
+  public static native int select_candidate_snapshot(int index, ByteBuffer buffer);
+
+  @FastNative
+  public static native int set_caret_pos_snapshot(int caret_pos, ByteBuffer buffer);
 
   // runtime options
   public static native void set_option(String option, boolean value);
@@ -649,6 +1614,24 @@ public class Rime {
 
   public static native Object schema_get_value(String name, String key);
 
+  public static native long config_open(String name);
+
+  public static native void config_close(long handle);
+
+  public static native String[] config_get_keys(long handle, String key);
+
+  public static native boolean[] config_get_bools(long handle, String[] keys, boolean default_value);
+
+  public static native int[] config_get_ints(long handle, String[] keys, int default_value);
+
+  public static native double[] config_get_doubles(long handle, String[] keys, double default_value);
+
+  public static native String[] config_get_strings(long handle, String[] keys);
+
+  public static native Object config_get_node(long handle, String key);
+
+  public static native byte[] config_get_snapshot(long handle, String[] keys);
+
   // testing
   public static native boolean simulate_key_sequence(String key_sequence);
 
@@ -660,6 +1643,7 @@ public class Rime {
 
   public static native boolean select_candidate(int index);
 
+  @FastNative
   public static native boolean select_candidate_on_current_page(int index);
 
   public static native String get_version();
@@ -702,6 +1686,15 @@ public class Rime {
 
   public static native String opencc_convert(String line, String name);
 
+  public static native String[] opencc_convert_many(String[] lines, String name);
+
+  /** 轉換直接緩衝區中的UTF-8文字，輸出緩衝區不足時返回所需長度的相反數 */
+  public static native int opencc_convert_buffer(
+      ByteBuffer input, int length, ByteBuffer output, String name);
+
+  /** 釋放緩存的轉換器，name爲null時全部釋放 */
+  public static native void opencc_release(String name);
+
   public static native void opencc_convert_dictionary(
       String inputFileName, String outputFileName, String formatFrom, String formatTo);
 
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2015-present, osfans
+ * waxaca@163.com https://github.com/osfans
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.osfans.trime;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 主題與方案合併後的style，已轉爲基本類型
+ *
+ * <p>尺寸已換算成像素，缺省值與{@link Config}的同名方法一致，數值按類型批量讀取。每種主題與方案的組合只建立一次，各界面共用。
+ */
+public class StyleSnapshot {
+  // 浮動窗口
+  public final List<Map<String, Object>> window;
+  public final boolean has_window;
+  public final String layout_position;
+  public final String layout_movable;
+  public final int layout_spacing;
+  public final int layout_min_length;
+  public final int layout_max_length;
+  public final int layout_sticky_lines;
+  public final boolean has_layout_max_entries;
+  public final int layout_max_entries;
+  public final boolean layout_all_phrases;
+  public final int layout_border;
+  public final float layout_round_corner;
+  public final boolean has_layout_alpha;
+  public final int layout_alpha;
+  public final int layout_elevation;
+  public final float layout_line_spacing;
+  public final float layout_line_spacing_multiplier;
+  public final int layout_min_width;
+  public final int layout_min_height;
+  public final int layout_max_width;
+  public final int layout_max_height;
+  public final int layout_margin_x;
+  public final int layout_margin_y;
+  public final int text_size;
+  public final int label_text_size;
+
+  // 候選條
+  public final int candidate_text_size;
+  public final int comment_text_size;
+  public final int candidate_spacing;
+  public final int candidate_padding;
+  public final int candidate_view_height;
+  public final int comment_height;
+  public final boolean comment_on_top;
+  public final boolean candidate_use_cursor;
+
+  // 鍵盤
+  public final int key_text_size;
+  public final int key_long_text_size;
+  public final int symbol_text_size;
+  public final int vertical_correction;
+  public final boolean proximity_correction;
+  public final int preview_offset;
+  public final int preview_height;
+  public final int preview_text_size;
+  public final float background_dim_amount;
+  public final float shadow_radius;
+  public final float round_corner;
+  public final int horizontal_gap;
+  public final int vertical_gap;
+  public final double key_width;
+  public final int key_height;
+
+  // 輸入法
+  public final boolean reset_ascii_mode;
+  public final String auto_caps;
+  public final String locale;
+  public final String latin_locale;
+
+  // 按類型批量讀取的鍵，順序與構造函數中的賦值一致
+  private static final String[] BOOLEANS = {
+    "layout/all_phrases",
+    "comment_on_top",
+    "candidate_use_cursor",
+    "proximity_correction",
+    "reset_ascii_mode",
+  };
+  private static final String[] INTS = {
+    "layout/min_length",
+    "layout/max_length",
+    "layout/sticky_lines",
+    "layout/max_entries",
+    "layout/alpha",
+    "preview_text_size",
+  };
+  private static final String[] DOUBLES = {
+    "layout/spacing",
+    "layout/border",
+    "layout/round_corner",
+    "layout/elevation",
+    "layout/line_spacing",
+    "layout/line_spacing_multiplier",
+    "layout/min_width",
+    "layout/min_height",
+    "layout/max_width",
+    "layout/max_height",
+    "layout/margin_x",
+    "layout/margin_y",
+    "text_size",
+    "label_text_size",
+    "candidate_text_size",
+    "comment_text_size",
+    "candidate_spacing",
+    "candidate_padding",
+    "candidate_view_height",
+    "comment_height",
+    "key_text_size",
+    "key_long_text_size",
+    "symbol_text_size",
+    "vertical_correction",
+    "preview_offset",
+    "preview_height",
+    "background_dim_amount",
+    "shadow_radius",
+    "round_corner",
+    "horizontal_gap",
+    "vertical_gap",
+    "key_width",
+    "key_height",
+  };
+
+  StyleSnapshot(Config config) {
+    boolean[] b = config.getBooleans(BOOLEANS);
+    int[] n = config.getInts(INTS);
+    double[] d = config.getDoubles(DOUBLES);
+    int ib = 0, in = 0, id = 0;
+
+    window = (List<Map<String, Object>>) config.getValue("window");
+    has_window = window != null;
+    layout_position = config.getString("layout/position");
+    layout_movable = config.getString("layout/movable");
+    layout_spacing = pixel(d[id++]);
+    layout_min_length = n[in++];
+    layout_max_length = n[in++];
+    layout_sticky_lines = n[in++];
+    has_layout_max_entries = config.hasKey("layout/max_entries");
+    layout_max_entries = n[in++];
+    layout_all_phrases = b[ib++];
+    layout_border = pixel(d[id++]);
+    layout_round_corner = (float) d[id++];
+    has_layout_alpha = config.hasKey("layout/alpha");
+    layout_alpha = n[in++];
+    layout_elevation = pixel(d[id++]);
+    layout_line_spacing = (float) d[id++];
+    layout_line_spacing_multiplier = (float) d[id++];
+    layout_min_width = pixel(d[id++]);
+    layout_min_height = pixel(d[id++]);
+    layout_max_width = pixel(d[id++]);
+    layout_max_height = pixel(d[id++]);
+    layout_margin_x = pixel(d[id++]);
+    layout_margin_y = pixel(d[id++]);
+    text_size = pixel(d[id++]);
+    label_text_size = pixel(d[id++]);
+
+    candidate_text_size = pixel(d[id++]);
+    comment_text_size = pixel(d[id++]);
+    candidate_spacing = pixel(d[id++]);
+    candidate_padding = pixel(d[id++]);
+    candidate_view_height = pixel(d[id++]);
+    comment_height = pixel(d[id++]);
+    comment_on_top = b[ib++];
+    candidate_use_cursor = b[ib++];
+
+    key_text_size = pixel(d[id++]);
+    key_long_text_size = pixel(d[id++]);
+    symbol_text_size = pixel(d[id++]);
+    vertical_correction = pixel(d[id++]);
+    proximity_correction = b[ib++];
+    preview_offset = pixel(d[id++]);
+    preview_height = pixel(d[id++]);
+    preview_text_size = n[in++];
+    background_dim_amount = (float) d[id++];
+    shadow_radius = (float) d[id++];
+    round_corner = (float) d[id++];
+    horizontal_gap = pixel(d[id++]);
+    vertical_gap = pixel(d[id++]);
+    key_width = d[id++];
+    key_height = pixel(d[id++]);
+
+    reset_ascii_mode = b[ib++];
+    auto_caps = config.getString("auto_caps");
+    locale = config.getString("locale");
+    latin_locale = config.getString("latin_locale");
+  }
+
+  private static int pixel(double d) {
+    return Config.getPixel((float) d);
+  }
+}
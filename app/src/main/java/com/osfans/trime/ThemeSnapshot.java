@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2015-present, osfans
+ * waxaca@163.com https://github.com/osfans
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.osfans.trime;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * 主題配置的二進制快照
+ *
+ * <p>把Rime配置中的Map、List與字符串存成緊湊的二進制文件，重複的字符串只存一次，由JNI從配置樹直接寫出。快照以源文件內容的校驗值爲鍵，源文件未變時映射到內存直接讀取，不必重新部署和經JNI逐項讀取。
+ */
+public class ThemeSnapshot {
+  private static final int MAGIC = 0x54525453; // TRTS
+  private static final int VERSION = 1;
+  private static final byte NULL = 0, STRING = 1, LIST = 2, MAP = 3; // 與rime.cc一致
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static Logger Log = Logger.getLogger(ThemeSnapshot.class.getSimpleName());
+
+  /**
+   * 計算源文件的校驗值，文件路徑、內容和額外的字符串都計入
+   *
+   * @param files 源文件，不存在的文件跳過
+   * @param extra 其他影響結果的內容，可爲null
+   * @return 校驗值，沒有任何源文件或讀取失敗時返回0
+   */
+  public static long hash(File[] files, String extra) {
+    CRC32 crc = new CRC32();
+    long length = 0;
+    byte[] buffer = new byte[8192];
+    for (File file : files) {
+      if (!file.isFile()) continue;
+      crc.update(file.getPath().getBytes(UTF_8));
+      InputStream in = null;
+      try {
+        in = new FileInputStream(file);
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+          crc.update(buffer, 0, n);
+          length += n;
+        }
+      } catch (IOException e) {
+        return 0;
+      } finally {
+        close(in);
+      }
+    }
+    if (length == 0) return 0;
+    if (extra != null) crc.update(extra.getBytes(UTF_8));
+    return (length << 32) | crc.getValue();
+  }
+
+  /**
+   * 讀取快照
+   *
+   * @param file 快照文件
+   * @param key 源文件的校驗值
+   * @return 快照中的值，文件不存在、已損壞或鍵不符時返回null
+   */
+  public static Object load(File file, long key) {
+    if (key == 0 || !file.isFile()) return null;
+    FileInputStream in = null;
+    try {
+      in = new FileInputStream(file);
+      FileChannel channel = in.getChannel();
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer.getLong() != key) {
+        return null;
+      }
+      String[] strings = new String[buffer.getInt()];
+      byte[] bytes = new byte[256];
+      for (int i = 0; i < strings.length; i++) {
+        int n = buffer.getInt();
+        if (bytes.length < n) bytes = new byte[n];
+        buffer.get(bytes, 0, n);
+        strings[i] = new String(bytes, 0, n, UTF_8);
+      }
+      return read(buffer, strings);
+    } catch (Exception e) {
+      Log.warning("Fail to load " + file + ": " + e);
+      return null;
+    } finally {
+      close(in);
+    }
+  }
+
+  private static Object read(ByteBuffer buffer, String[] strings) {
+    byte type = buffer.get();
+    switch (type) {
+      case STRING:
+        return strings[buffer.getInt()];
+      case LIST:
+        {
+          int n = buffer.getInt();
+          List<Object> list = new ArrayList<Object>(n);
+          for (int i = 0; i < n; i++) list.add(read(buffer, strings));
+          return list;
+        }
+      case MAP:
+        {
+          int n = buffer.getInt();
+          Map<String, Object> map = new HashMap<String, Object>(n * 4 / 3 + 1);
+          for (int i = 0; i < n; i++) {
+            String key = strings[buffer.getInt()];
+            map.put(key, read(buffer, strings));
+          }
+          return map;
+        }
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * 保存快照，先寫入臨時文件再改名，失敗時刪除
+   *
+   * @param file 快照文件
+   * @param key 源文件的校驗值，爲0時不保存
+   * @param data {@link Rime#config_get_snapshot}從配置樹直接寫出的字符串表與節點，爲null時不保存
+   */
+  public static void save(File file, long key, byte[] data) {
+    if (key == 0 || data == null) return;
+    File tmp = new File(file.getPath() + ".tmp");
+    DataOutputStream out = null;
+    try {
+      File dir = file.getParentFile();
+      if (dir != null && !dir.exists()) dir.mkdirs();
+      out = new DataOutputStream(new FileOutputStream(tmp));
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(key);
+      out.write(data);
+      out.close();
+      out = null;
+      if (!tmp.renameTo(file)) tmp.delete();
+    } catch (IOException e) {
+      Log.warning("Fail to save " + file + ": " + e);
+      close(out);
+      tmp.delete();
+    }
+  }
+
+  private static void close(Closeable c) {
+    if (c == null) return;
+    try {
+      c.close();
+    } catch (IOException e) {
+      // 忽略
+    }
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2015-present, osfans
+ * waxaca@163.com https://github.com/osfans
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.osfans.trime.ime.core;
+
+import android.inputmethodservice.InputMethodService;
+import android.text.TextUtils;
+import android.view.KeyEvent;
+import android.view.inputmethod.InputConnection;
+
+/**
+ * 向編輯框寫入文字
+ *
+ * <p>{@link #begin()}與{@link #end()}之間的寫入合併爲一次批量編輯，首次寫入時纔開始，沒有寫入就不經IPC。與上次相同的編碼不重複發送，清除修飾鍵狀態合併到下次發送按鍵或批量編輯結束時發送一次。按鍵和編輯操作可能改動組字區，之後的編碼總是重新發送。
+ */
+class EditorWriter {
+  private final InputMethodService service;
+  /** 已開始批量編輯的連接 */
+  private InputConnection batch;
+  private int depth;
+  /** 上次發送的編碼，未知時爲null */
+  private String composing;
+  /** 批量編輯結束時要清除的修飾鍵狀態 */
+  private int metaStates;
+
+  EditorWriter(InputMethodService service) {
+    this.service = service;
+  }
+
+  /** 開始一次事件的寫入，可嵌套 */
+  void begin() {
+    depth++;
+  }
+
+  void end() {
+    if (depth == 0) return;
+    if (--depth == 0) finish();
+  }
+
+  /** 進入或離開文本框時，編輯框中的編碼未知 */
+  void reset() {
+    composing = null;
+  }
+
+  /** 編輯框報告的組字區長度與上次發送的編碼不符時，下次必須重新發送 */
+  void onUpdateSelection(int candidatesStart, int candidatesEnd) {
+    int length = candidatesStart < 0 ? 0 : candidatesEnd - candidatesStart;
+    if (composing != null && composing.length() != length) composing = null;
+  }
+
+  private InputConnection open() {
+    InputConnection ic = service.getCurrentInputConnection();
+    if (ic == null || depth == 0 || batch == ic) return ic;
+    finish();
+    ic.beginBatchEdit();
+    batch = ic;
+    return ic;
+  }
+
+  private void finish() {
+    if (batch == null) return;
+    flushMetaKeyStates(batch);
+    batch.endBatchEdit();
+    batch = null;
+  }
+
+  void setComposingText(CharSequence text) {
+    if (composing != null && TextUtils.equals(composing, text)) return;
+    InputConnection ic = open();
+    if (ic == null) return;
+    ic.setComposingText(text, 1);
+    composing = text.toString();
+  }
+
+  private void flushMetaKeyStates(InputConnection ic) {
+    if (metaStates != 0) ic.clearMetaKeyStates(metaStates);
+    metaStates = 0;
+  }
+
+  /** 清除修飾鍵狀態，批量編輯中與其他清除合併 */
+  void clearMetaKeyStates(int states) {
+    InputConnection ic = open();
+    if (ic == null) return;
+    metaStates |= states;
+    if (batch == null) flushMetaKeyStates(ic);
+  }
+
+  /** 上屏並清除修飾鍵狀態 */
+  boolean commitText(CharSequence text, int metaStates) {
+    InputConnection ic = open();
+    if (ic == null) return false;
+    ic.commitText(text, 1);
+    composing = "";
+    clearMetaKeyStates(metaStates);
+    return true;
+  }
+
+  /** 發送按鍵，先清除之前要清除的修飾鍵狀態 */
+  boolean sendKeyEvent(KeyEvent event) {
+    InputConnection ic = open();
+    if (ic == null) return false;
+    flushMetaKeyStates(ic);
+    composing = null;
+    return ic.sendKeyEvent(event);
+  }
+
+  /** 編輯操作，如剪切、粘貼、撤銷 */
+  boolean performContextMenuAction(int id) {
+    InputConnection ic = open();
+    if (ic == null) return false;
+    composing = null;
+    return ic.performContextMenuAction(id);
+  }
+}
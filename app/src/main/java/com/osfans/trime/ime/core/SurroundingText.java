@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2015-present, osfans
+ * waxaca@163.com https://github.com/osfans
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.osfans.trime.ime.core;
+
+import android.text.TextUtils;
+import android.view.inputmethod.EditorInfo;
+import android.view.inputmethod.InputConnection;
+
+/**
+ * 光標附近文字的本地副本
+ *
+ * <p>每次進入文本框後首次讀取時從{@link InputConnection}取得，之後隨選區變化和本輸入法的上屏更新。選區位置與記錄不符時作廢，下次讀取重新獲取。
+ */
+class SurroundingText {
+  /** 光標前後各保留的字數 */
+  static final int MAX_LENGTH = 1024;
+
+  private final StringBuilder before = new StringBuilder();
+  private CharSequence after;
+  private CharSequence selected;
+  /** 編輯框的選區，未知時爲-1 */
+  private int selStart = -1, selEnd = -1;
+  /** 編輯框中正在組字的區域，不計入光標前文字 */
+  private int candidatesStart = -1;
+  /** 副本對應的選區，與編輯框不一致時作廢 */
+  private int beforePos = -1, afterPos = -1, selectedStart = -1, selectedEnd = -1;
+  /** 本輸入法上屏後尚未收到選區更新 */
+  private boolean committed;
+
+  /** 進入新文本框時清空，選區取自{@link EditorInfo} */
+  void reset(EditorInfo attribute) {
+    invalidate();
+    selStart = attribute == null ? -1 : attribute.initialSelStart;
+    selEnd = attribute == null ? -1 : attribute.initialSelEnd;
+    candidatesStart = -1;
+  }
+
+  void invalidate() {
+    before.setLength(0);
+    after = null;
+    selected = null;
+    beforePos = afterPos = selectedStart = selectedEnd = -1;
+  }
+
+  /** 編輯框報告的新選區，選區未變又不是本輸入法上屏時，文字可能已被編輯框改動 */
+  void onUpdateSelection(
+      int oldSelStart, int oldSelEnd, int newSelStart, int newSelEnd, int candidatesStart) {
+    if (oldSelStart == newSelStart && oldSelEnd == newSelEnd && !committed) invalidate();
+    committed = false;
+    selStart = newSelStart;
+    selEnd = newSelEnd;
+    this.candidatesStart = candidatesStart;
+  }
+
+  /** 本輸入法上屏的文字替換了組字區或選中文字，光標移到其後 */
+  void onCommit(CharSequence text) {
+    committed = true;
+    int start = getAnchor();
+    if (start < 0) {
+      invalidate();
+      selStart = selEnd = -1;
+      return;
+    }
+    int end = start + text.length();
+    if (beforePos == start) {
+      before.append(text);
+      if (before.length() > MAX_LENGTH) before.delete(0, before.length() - MAX_LENGTH);
+      beforePos = end;
+    }
+    if (afterPos == (candidatesStart >= 0 ? candidatesStart : Math.max(selStart, selEnd))) {
+      afterPos = end;
+    }
+    selected = null;
+    selectedStart = selectedEnd = -1;
+    selStart = selEnd = end;
+    candidatesStart = -1;
+  }
+
+  /** 上屏文字的插入點：有組字區時爲組字區開頭，否則爲選區開頭 */
+  private int getAnchor() {
+    return candidatesStart >= 0 ? candidatesStart : Math.min(selStart, selEnd);
+  }
+
+  /** 是否有選中文字，選區未知時返回null */
+  Boolean hasSelection() {
+    if (selStart < 0 || selEnd < 0) return null;
+    return selStart != selEnd;
+  }
+
+  CharSequence getSelectedText(InputConnection ic) {
+    Boolean hasSelection = hasSelection();
+    if (hasSelection != null && !hasSelection) return null;
+    if (selected != null && selectedStart == selStart && selectedEnd == selEnd) return selected;
+    CharSequence cs = ic.getSelectedText(0);
+    if (hasSelection != null && cs != null) {
+      selected = cs.toString();
+      selectedStart = selStart;
+      selectedEnd = selEnd;
+    }
+    return cs;
+  }
+
+  /** 光標前最多n個字，n不超過{@link #MAX_LENGTH} */
+  CharSequence getTextBeforeCursor(InputConnection ic, int n) {
+    if (!isBeforeValid()) {
+      CharSequence cs = ic.getTextBeforeCursor(MAX_LENGTH, 0);
+      if (cs == null || !isCacheable()) return trimStart(cs, n);
+      before.setLength(0);
+      before.append(cs);
+      beforePos = Math.min(selStart, selEnd);
+    }
+    return before.subSequence(Math.max(0, before.length() - n), before.length()).toString();
+  }
+
+  /** 光標後最多n個字，n不超過{@link #MAX_LENGTH} */
+  CharSequence getTextAfterCursor(InputConnection ic, int n) {
+    int end = Math.max(selStart, selEnd);
+    if (after == null || afterPos < 0 || afterPos != end || candidatesStart >= 0) {
+      CharSequence cs = ic.getTextAfterCursor(MAX_LENGTH, 0);
+      if (cs == null || !isCacheable()) return trimEnd(cs, n);
+      after = cs.toString();
+      afterPos = end;
+    }
+    return trimEnd(after, n);
+  }
+
+  /** 與{@link InputConnection#getCursorCapsMode}相同，光標前文字已緩存時不經IPC */
+  int getCursorCapsMode(InputConnection ic, int reqModes) {
+    if (!isBeforeValid()) return ic.getCursorCapsMode(reqModes);
+    return TextUtils.getCapsMode(before, before.length(), reqModes);
+  }
+
+  private boolean isBeforeValid() {
+    return beforePos >= 0 && beforePos == Math.min(selStart, selEnd) && candidatesStart < 0;
+  }
+
+  /** 沒有組字區、選區已知時取得的文字纔能與選區對應 */
+  private boolean isCacheable() {
+    return selStart >= 0 && selEnd >= 0 && candidatesStart < 0;
+  }
+
+  private static CharSequence trimStart(CharSequence cs, int n) {
+    if (cs == null || cs.length() <= n) return cs;
+    return cs.subSequence(cs.length() - n, cs.length());
+  }
+
+  private static CharSequence trimEnd(CharSequence cs, int n) {
+    if (cs == null || cs.length() <= n) return cs;
+    return cs.subSequence(0, n);
+  }
+}
@@ -33,6 +33,7 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
 import android.text.InputType;
+import android.util.SparseBooleanArray;
 import android.view.Gravity;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
@@ -49,20 +50,25 @@ import android.widget.FrameLayout;
 import android.widget.LinearLayout;
 import android.widget.PopupWindow;
 
+import com.osfans.trime.BitmapCache;
 import com.osfans.trime.Candidate;
 import com.osfans.trime.Composition;
 import com.osfans.trime.Config;
 import com.osfans.trime.Effect;
 import com.osfans.trime.Event;
+import com.osfans.trime.FontCache;
+import com.osfans.trime.FrameScheduler;
 import com.osfans.trime.Function;
 import com.osfans.trime.IntentReceiver;
 import com.osfans.trime.Key;
 import com.osfans.trime.Keyboard;
 import com.osfans.trime.KeyboardSwitch;
 import com.osfans.trime.KeyboardView;
+import com.osfans.trime.Macro;
 import com.osfans.trime.R;
 import com.osfans.trime.Rime;
 import com.osfans.trime.Speech;
+import com.osfans.trime.StyleSnapshot;
 import com.osfans.trime.enums.InlineModeType;
 import com.osfans.trime.enums.WindowsPositionType;
 import com.osfans.trime.settings.components.ColorPickerDialog;
@@ -74,12 +80,12 @@ import org.jetbrains.annotations.Nullable;
 
 import java.util.Locale;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /** {@link InputMethodService 輸入法}主程序 */
 public class Trime extends InputMethodService
-    implements KeyboardView.OnKeyboardActionListener, Candidate.CandidateListener {
+    implements KeyboardView.OnKeyboardActionListener,
+        Candidate.CandidateListener,
+        FrameScheduler.Callback {
   private static Logger Log = Logger.getLogger(Trime.class.getSimpleName());
   private static Trime self;
   private KeyboardView mKeyboardView; //軟鍵盤
@@ -92,6 +98,9 @@ public class Trime extends InputMethodService
   private FrameLayout mCandidateContainer;
   private PopupWindow mFloatingWindow;
   private PopupTimer mFloatingWindowTimer = new PopupTimer();
+  private FrameScheduler mFrameScheduler = new FrameScheduler(this); //按幀刷新界面
+  private final SurroundingText mSurroundingText = new SurroundingText(); //光標附近文字
+  private final EditorWriter mEditorWriter = new EditorWriter(this); //合併寫入編輯框
   private RectF mPopupRectF = new RectF();
   private AlertDialog mOptionsDialog; //對話框
 
@@ -110,6 +119,8 @@ public class Trime extends InputMethodService
   private String auto_caps; //句首自動大寫
   private Locale[] locales = new Locale[2];
   private boolean keyUpNeeded; //RIME是否需要處理keyUp事件
+  //已交給RIME的軟鍵盤按鍵，鬆開時也交給RIME
+  private final SparseBooleanArray mRimeSoftKeys = new SparseBooleanArray();
   private boolean mNeedUpdateRimeOption = true;
   private String lastCommittedText;
 
@@ -255,11 +266,12 @@ public class Trime extends InputMethodService
   public void loadConfig() {
     inlinePreedit = mConfig.getInlinePreedit();
     winPos = mConfig.getWinPos();
-    movable = mConfig.getString("layout/movable");
-    candSpacing = mConfig.getPixel("layout/spacing");
-    min_length = mConfig.getInt("layout/min_length");
-    reset_ascii_mode = mConfig.getBoolean("reset_ascii_mode");
-    auto_caps = mConfig.getString("auto_caps");
+    StyleSnapshot style = mConfig.getStyle();
+    movable = style.layout_movable;
+    candSpacing = style.layout_spacing;
+    min_length = style.layout_min_length;
+    reset_ascii_mode = style.reset_ascii_mode;
+    auto_caps = style.auto_caps;
     mShowWindow = mConfig.getShowWindow();
     mNeedUpdateRimeOption = true;
   }
@@ -302,12 +314,12 @@ public class Trime extends InputMethodService
     mKeyboardSwitch = new KeyboardSwitch(this);
 
     @Nullable String s;
-    s = mConfig.getString("locale");
+    s = mConfig.getStyle().locale;
     if (Function.isEmpty(s)) s = "";
     locales[0] = LocaleUtils.INSTANCE.stringToLocale(s);
     if (locales[0].equals(new Locale(s))) locales[0] = Locale.getDefault();
 
-    s = mConfig.getString("latin_locale");
+    s = mConfig.getStyle().latin_locale;
     if (Function.isEmpty(s)) s = "en_US";
     locales[1] = LocaleUtils.INSTANCE.stringToLocale(s);
     if (locales[1].equals(new Locale(s))) locales[0] = Locale.ENGLISH;
@@ -359,11 +371,11 @@ public class Trime extends InputMethodService
           boolean bNeedUpdate = mNeedUpdateRimeOption;
           if (bNeedUpdate) mNeedUpdateRimeOption = false; //防止在onMessage中setOption
           String key = option.substring(5);
-          onEvent(new Event(key));
+          onEvent(Event.get(key));
           if (bNeedUpdate) mNeedUpdateRimeOption = true;
         }
     }
-    if (mKeyboardView != null) mKeyboardView.invalidateAllKeys();
+    mFrameScheduler.invalidate(FrameScheduler.ALL_KEYS);
   }
 
   public void invalidate() {
@@ -380,23 +392,25 @@ public class Trime extends InputMethodService
   }
 
   private void loadBackground() {
+    StyleSnapshot style = mConfig.getStyle();
     GradientDrawable gd = new GradientDrawable();
-    gd.setStroke(mConfig.getPixel("layout/border"), mConfig.getColor("border_color"));
-    gd.setCornerRadius(mConfig.getFloat("layout/round_corner"));
+    gd.setStroke(style.layout_border, mConfig.getColor("border_color"));
+    gd.setCornerRadius(style.layout_round_corner);
     Drawable d = mConfig.getDrawable("layout/background");
     if (d == null) {
       gd.setColor(mConfig.getColor("text_back_color"));
       d = gd;
     }
-    if (mConfig.hasKey("layout/alpha")) {
-      int alpha = mConfig.getInt("layout/alpha");
+    if (style.has_layout_alpha) {
+      int alpha = style.layout_alpha;
       if (alpha <= 0) alpha = 0;
       else if (alpha >= 255) alpha = 255;
+      d = d.mutate(); //不影響共用同一狀態的其他背景
       d.setAlpha(alpha);
     }
     mFloatingWindow.setBackgroundDrawable(d);
     if (VERSION.SDK_INT >= VERSION_CODES.LOLLIPOP)
-      mFloatingWindow.setElevation(mConfig.getPixel("layout/elevation"));
+      mFloatingWindow.setElevation(style.layout_elevation);
     Integer candidateBgColor = mConfig.getColor("candidate_bg_color");
     if (candidateBgColor != null)
       mCandidateContainer.setBackgroundColor(candidateBgColor);
@@ -444,6 +458,7 @@ public class Trime extends InputMethodService
   @Override
   public void onDestroy() {
     super.onDestroy();
+    mFrameScheduler.cancel();
     mIntentReceiver.unregisterReceiver(this);
     self = null;
     if (mConfig.isDestroyOnQuit()) {
@@ -454,6 +469,13 @@ public class Trime extends InputMethodService
     }
   }
 
+  @Override
+  public void onTrimMemory(int level) {
+    super.onTrimMemory(level);
+    FontCache.trim();
+    BitmapCache.trim();
+  }
+
   public static Trime getService() {
     if (self == null)
       self = new Trime();
@@ -484,6 +506,7 @@ public class Trime extends InputMethodService
       }
       cursorAnchorInfo.getMatrix().mapRect(mPopupRectF);
       if (mCandidateContainer != null) {
+        mFrameScheduler.flush(); //先更新編碼區再測量懸浮窗
         mFloatingWindowTimer.postShowFloatingWindow();
       }
     }
@@ -499,6 +522,9 @@ public class Trime extends InputMethodService
       int candidatesEnd) {
     super.onUpdateSelection(
         oldSelStart, oldSelEnd, newSelStart, newSelEnd, candidatesStart, candidatesEnd);
+    mSurroundingText.onUpdateSelection(
+        oldSelStart, oldSelEnd, newSelStart, newSelEnd, candidatesStart);
+    mEditorWriter.onUpdateSelection(candidatesStart, candidatesEnd);
     if ((candidatesEnd != -1) && ((newSelStart != candidatesEnd) || (newSelEnd != candidatesEnd))) {
       //移動光標時，更新候選區
       if ((newSelEnd < candidatesEnd) && (newSelEnd >= candidatesStart)) {
@@ -566,6 +592,8 @@ public class Trime extends InputMethodService
   @Override
   public void onStartInput(EditorInfo attribute, boolean restarting) {
     super.onStartInput(attribute, restarting);
+    mSurroundingText.reset(attribute);
+    mEditorWriter.reset();
     canCompose = false;
     enterAsLineBreak = false;
     mTempAsciiMode = false;
@@ -657,7 +685,7 @@ public class Trime extends InputMethodService
         int caps = 0;
         EditorInfo ei = getCurrentInputEditorInfo();
         if ((ei != null) && (ei.inputType != EditorInfo.TYPE_NULL)) {
-          caps = ic.getCursorCapsMode(ei.inputType);
+          caps = mSurroundingText.getCursorCapsMode(ic, ei.inputType);
         }
         mKeyboardView.setShifted(false, caps != 0);
       }
@@ -676,13 +704,21 @@ public class Trime extends InputMethodService
   public void commitText(CharSequence text, boolean isRime) {
     if (text == null) return;
     mEffect.speakCommit(text);
-    InputConnection ic = getCurrentInputConnection();
-    if (ic != null) {
-      ic.commitText(text, 1);
+    //清除修飾鍵狀態，避免黑莓刪除鍵清空文本框問題
+    if (mEditorWriter.commitText(text, KeyEvent.getModifierMetaStateMask())) {
+      mSurroundingText.onCommit(text);
       lastCommittedText = text.toString();
     }
     if (isRime && !isComposing()) Rime.commitComposition(); //自動上屏
-    ic.clearMetaKeyStates(KeyEvent.getModifierMetaStateMask()); //黑莓刪除鍵清空文本框問題
+  }
+
+  /** 開始一次按鍵或點擊的編輯，其中的所有寫入合併爲一次批量編輯 */
+  public void beginBatchEdit() {
+    mEditorWriter.begin();
+  }
+
+  public void endBatchEdit() {
+    mEditorWriter.end();
   }
 
   public void commitText(CharSequence text) {
@@ -709,7 +745,7 @@ public class Trime extends InputMethodService
   private CharSequence getLastText() {
     InputConnection ic = getCurrentInputConnection();
     if (ic != null) {
-      return ic.getTextBeforeCursor(1, 0);
+      return mSurroundingText.getTextBeforeCursor(ic, 1);
     }
     return "";
   }
@@ -723,24 +759,30 @@ public class Trime extends InputMethodService
         if (code == KeyEvent.KEYCODE_V
             && Event.hasModifier(mask, KeyEvent.META_ALT_ON)
             && Event.hasModifier(mask, KeyEvent.META_SHIFT_ON)) {
-          return ic.performContextMenuAction(android.R.id.pasteAsPlainText);
+          return performContextMenuAction(android.R.id.pasteAsPlainText);
         }
         if (code == KeyEvent.KEYCODE_S && Event.hasModifier(mask, KeyEvent.META_ALT_ON)) {
-          CharSequence cs = ic.getSelectedText(0);
-          if (cs == null) ic.performContextMenuAction(android.R.id.selectAll);
-          return ic.performContextMenuAction(android.R.id.shareText);
+          CharSequence cs = mSurroundingText.getSelectedText(ic);
+          if (cs == null) performContextMenuAction(android.R.id.selectAll);
+          return performContextMenuAction(android.R.id.shareText);
         }
-        if (code == KeyEvent.KEYCODE_Y) return ic.performContextMenuAction(android.R.id.redo);
-        if (code == KeyEvent.KEYCODE_Z) return ic.performContextMenuAction(android.R.id.undo);
+        if (code == KeyEvent.KEYCODE_Y) return performContextMenuAction(android.R.id.redo);
+        if (code == KeyEvent.KEYCODE_Z) return performContextMenuAction(android.R.id.undo);
       }
-      if (code == KeyEvent.KEYCODE_A) return ic.performContextMenuAction(android.R.id.selectAll);
-      if (code == KeyEvent.KEYCODE_X) return ic.performContextMenuAction(android.R.id.cut);
-      if (code == KeyEvent.KEYCODE_C) return ic.performContextMenuAction(android.R.id.copy);
-      if (code == KeyEvent.KEYCODE_V) return ic.performContextMenuAction(android.R.id.paste);
+      if (code == KeyEvent.KEYCODE_A) return performContextMenuAction(android.R.id.selectAll);
+      if (code == KeyEvent.KEYCODE_X) return performContextMenuAction(android.R.id.cut);
+      if (code == KeyEvent.KEYCODE_C) return performContextMenuAction(android.R.id.copy);
+      if (code == KeyEvent.KEYCODE_V) return performContextMenuAction(android.R.id.paste);
     }
     return false;
   }
 
+  /** 編輯操作可能改動光標附近文字而不移動光標，執行前作廢其副本 */
+  private boolean performContextMenuAction(int id) {
+    mSurroundingText.invalidate();
+    return mEditorWriter.performContextMenuAction(id);
+  }
+
   /**
    * 如果爲{@link KeyEvent#KEYCODE_BACK Back鍵}，則隱藏鍵盤
    *
@@ -755,9 +797,9 @@ public class Trime extends InputMethodService
     return false;
   }
 
-  private boolean onRimeKey(int[] event) {
+  private boolean onRimeKey(int keyCode, int mask) {
     updateRimeOption();
-    boolean ret = Rime.onKey(event);
+    boolean ret = Rime.onKey(Event.getRimeKeycode(keyCode), Event.getRimeModifier(mask));
     commitText();
     return ret;
   }
@@ -768,9 +810,7 @@ public class Trime extends InputMethodService
     if (keyCode >= Key.getSymbolStart()) return false; //只處理安卓標準按鍵
     if (event.getRepeatCount() == 0 && KeyEvent.isModifierKey(keyCode)) {
       boolean ret =
-          onRimeKey(
-              Event.getRimeEvent(
-                  keyCode, event.getAction() == KeyEvent.ACTION_DOWN ? 0 : Rime.META_RELEASE_ON));
+          onRimeKey(keyCode, event.getAction() == KeyEvent.ACTION_DOWN ? 0 : Rime.META_RELEASE_ON);
       if (isComposing()) setCandidatesViewShown(canCompose); //藍牙鍵盤打字時顯示候選欄
       return ret;
     }
@@ -781,7 +821,12 @@ public class Trime extends InputMethodService
   @Override
   public boolean onKeyDown(int keyCode, KeyEvent event) {
     Log.info("onKeyDown=" + event);
-    if (composeEvent(event) && onKeyEvent(event)) return true;
+    mEditorWriter.begin();
+    try {
+      if (composeEvent(event) && onKeyEvent(event)) return true;
+    } finally {
+      mEditorWriter.end();
+    }
     return super.onKeyDown(keyCode, event);
   }
 
@@ -833,6 +878,7 @@ public class Trime extends InputMethodService
     } else { //空格、回車等
       mask = event.getMetaState();
     }
+    if (event.getRepeatCount() > 0 && postRepeatKey(event, keyCode, mask)) return true;
     ret = handleKey(keyCode, mask);
     if (isComposing()) setCandidatesViewShown(canCompose); //藍牙鍵盤打字時顯示候選欄
     return ret;
@@ -852,14 +898,23 @@ public class Trime extends InputMethodService
 
   @Override
   public void onEvent(Event event) {
+    mEditorWriter.begin();
+    try {
+      handleEvent(event);
+    } finally {
+      mEditorWriter.end();
+    }
+  }
+
+  private void handleEvent(Event event) {
     String commit = event.getCommit();
     if (!Function.isEmpty(commit)) {
       commitText(commit, false); //直接上屏，不發送給Rime
       return;
     }
-    String s = event.getText();
-    if (!Function.isEmpty(s)) {
-      onText(s);
+    Macro macro = event.getMacro();
+    if (macro != null) {
+      onText(macro);
       return;
     }
     if (event.getCode() > 0) {
@@ -893,7 +948,7 @@ public class Trime extends InputMethodService
                 getActiveText(2),
                 getActiveText(3),
                 getActiveText(4));
-        s = Function.handle(this, event.getCommand(), arg);
+        String s = Function.handle(this, event.getCommand(), arg);
         if (s != null) {
           commitText(s);
           updateComposing();
@@ -923,12 +978,47 @@ public class Trime extends InputMethodService
     }
   }
 
-  private boolean handleKey(int keyCode, int mask) { //軟鍵盤
+  /**
+   * 組字時長按重複的按鍵交給引擎合併處理
+   *
+   * @return 是否已交給引擎，否則應同步處理
+   */
+  private boolean postRepeatKey(final KeyEvent event, final int keyCode, final int mask) {
+    if (!isComposing() || keyCode >= Key.getSymbolStart()) return false;
+    if (Rime.isVoidKeycode(Event.getRimeKeycode(keyCode))) return false;
     keyUpNeeded = false;
-    if (onRimeKey(Event.getRimeEvent(keyCode, mask))) {
+    updateRimeOption();
+    return Rime.postKey(
+        Event.getRimeKeycode(keyCode),
+        Event.getRimeModifier(mask),
+        new Rime.KeyCallback() {
+          @Override
+          public void onKeyProcessed(boolean handled) {
+            if (handled) {
+              keyUpNeeded = true;
+              return;
+            }
+            commitText(); //組字已結束，先上屏
+            if (handleUnhandledKey(keyCode, mask)) return;
+            keyUpNeeded = false;
+            //原樣轉交編輯框，如同框架處理未消費的按鍵
+            sendKeyEvent(event);
+          }
+        });
+  }
+
+  private boolean handleKey(int keyCode, int mask) { //實體鍵盤
+    keyUpNeeded = false;
+    if (onRimeKey(keyCode, mask)) {
       keyUpNeeded = true;
-      Log.info("Rime onKey");
-    } else if (handleAciton(keyCode, mask)
+      return true;
+    }
+    return handleUnhandledKey(keyCode, mask);
+  }
+
+  /** Rime未處理的按鍵，由Trime處理 */
+  private boolean handleUnhandledKey(int keyCode, int mask) {
+    if (handleAciton(keyCode, mask)
         || handleOption(keyCode)
         || handleEnter(keyCode)
         || handleBack(keyCode)) {
@@ -943,22 +1033,26 @@ public class Trime extends InputMethodService
     return true;
   }
 
-  private void sendKey(InputConnection ic, int key, int meta, int action) {
+  /** 按鍵可能改動光標附近文字而不移動光標，發送前作廢其副本 */
+  private void sendKeyEvent(KeyEvent event) {
+    mSurroundingText.invalidate();
+    mEditorWriter.sendKeyEvent(event);
+  }
+
+  private void sendKey(int key, int meta, int action) {
     long now = System.currentTimeMillis();
-    if (ic != null) ic.sendKeyEvent(new KeyEvent(now, now, action, key, 0, meta));
+    sendKeyEvent(new KeyEvent(now, now, action, key, 0, meta));
   }
 
-  private void sendKeyDown(InputConnection ic, int key, int meta) {
-    sendKey(ic, key, meta, KeyEvent.ACTION_DOWN);
+  private void sendKeyDown(int key, int meta) {
+    sendKey(key, meta, KeyEvent.ACTION_DOWN);
   }
 
-  private void sendKeyUp(InputConnection ic, int key, int meta) {
-    sendKey(ic, key, meta, KeyEvent.ACTION_UP);
+  private void sendKeyUp(int key, int meta) {
+    sendKey(key, meta, KeyEvent.ACTION_UP);
   }
 
   private void sendDownUpKeyEvents(int keyCode, int mask) {
-    InputConnection ic = getCurrentInputConnection();
-    if (ic == null) return;
     int states =
         KeyEvent.META_FUNCTION_ON
             | KeyEvent.META_SHIFT_MASK
@@ -966,7 +1060,7 @@ public class Trime extends InputMethodService
             | KeyEvent.META_CTRL_MASK
             | KeyEvent.META_META_MASK
             | KeyEvent.META_SYM_ON;
-    ic.clearMetaKeyStates(states);
+    mEditorWriter.clearMetaKeyStates(states); //與上屏時的清除合併
     if (mKeyboardView != null && mKeyboardView.isShifted()) {
       if (keyCode == KeyEvent.KEYCODE_MOVE_HOME
           || keyCode == KeyEvent.KEYCODE_MOVE_END
@@ -979,32 +1073,63 @@ public class Trime extends InputMethodService
 
     if (Event.hasModifier(mask, KeyEvent.META_SHIFT_ON)) {
       sendKeyDown(
-          ic, KeyEvent.KEYCODE_SHIFT_LEFT, KeyEvent.META_SHIFT_ON | KeyEvent.META_SHIFT_LEFT_ON);
+          KeyEvent.KEYCODE_SHIFT_LEFT, KeyEvent.META_SHIFT_ON | KeyEvent.META_SHIFT_LEFT_ON);
     }
     if (Event.hasModifier(mask, KeyEvent.META_CTRL_ON)) {
-      sendKeyDown(
-          ic, KeyEvent.KEYCODE_CTRL_LEFT, KeyEvent.META_CTRL_ON | KeyEvent.META_CTRL_LEFT_ON);
+      sendKeyDown(KeyEvent.KEYCODE_CTRL_LEFT, KeyEvent.META_CTRL_ON | KeyEvent.META_CTRL_LEFT_ON);
     }
     if (Event.hasModifier(mask, KeyEvent.META_ALT_ON)) {
-      sendKeyDown(ic, KeyEvent.KEYCODE_ALT_LEFT, KeyEvent.META_ALT_ON | KeyEvent.META_ALT_LEFT_ON);
+      sendKeyDown(KeyEvent.KEYCODE_ALT_LEFT, KeyEvent.META_ALT_ON | KeyEvent.META_ALT_LEFT_ON);
     }
-    sendKeyDown(ic, keyCode, mask);
-    sendKeyUp(ic, keyCode, mask);
+    sendKeyDown(keyCode, mask);
+    sendKeyUp(keyCode, mask);
     if (Event.hasModifier(mask, KeyEvent.META_ALT_ON)) {
-      sendKeyUp(ic, KeyEvent.KEYCODE_ALT_LEFT, KeyEvent.META_ALT_ON | KeyEvent.META_ALT_LEFT_ON);
+      sendKeyUp(KeyEvent.KEYCODE_ALT_LEFT, KeyEvent.META_ALT_ON | KeyEvent.META_ALT_LEFT_ON);
     }
     if (Event.hasModifier(mask, KeyEvent.META_CTRL_ON)) {
-      sendKeyUp(ic, KeyEvent.KEYCODE_CTRL_LEFT, KeyEvent.META_CTRL_ON | KeyEvent.META_CTRL_LEFT_ON);
+      sendKeyUp(KeyEvent.KEYCODE_CTRL_LEFT, KeyEvent.META_CTRL_ON | KeyEvent.META_CTRL_LEFT_ON);
     }
     if (Event.hasModifier(mask, KeyEvent.META_SHIFT_ON)) {
-      sendKeyUp(
-          ic, KeyEvent.KEYCODE_SHIFT_LEFT, KeyEvent.META_SHIFT_ON | KeyEvent.META_SHIFT_LEFT_ON);
+      sendKeyUp(KeyEvent.KEYCODE_SHIFT_LEFT, KeyEvent.META_SHIFT_ON | KeyEvent.META_SHIFT_LEFT_ON);
     }
   }
 
   @Override
-  public void onKey(int keyCode, int mask) { //軟鍵盤
-    if (handleKey(keyCode, mask)) return;
+  public void onKey(final int keyCode, final int mask) { //軟鍵盤
+    updateRimeOption();
+    //交給引擎線程處理，不阻塞按鍵動畫與音效
+    boolean posted =
+        Rime.postKey(
+            Event.getRimeKeycode(keyCode),
+            Event.getRimeModifier(mask),
+            new Rime.KeyCallback() {
+              @Override
+              public void onKeyProcessed(boolean handled) {
+                if (handled) return;
+                mRimeSoftKeys.delete(keyCode); //未鬆開時不必再發送釋放
+                commitText(); //先上屏，再處理Rime未處理的按鍵
+                onUnhandledKey(keyCode, mask);
+              }
+            });
+    if (posted) mRimeSoftKeys.put(keyCode, true);
+    else {
+      mEditorWriter.begin();
+      try {
+        commitText();
+        onUnhandledKey(keyCode, mask);
+      } finally {
+        mEditorWriter.end();
+      }
+    }
+  }
+
+  /** 一批異步按鍵處理完後上屏並刷新界面 */
+  public void onKeysProcessed() {
+    commitText();
+  }
+
+  private void onUnhandledKey(int keyCode, int mask) {
+    if (handleUnhandledKey(keyCode, mask)) return;
     if (keyCode >= Key.getSymbolStart()) { //符號
       keyUpNeeded = false;
       commitText(Event.getDisplayLabel(keyCode));
@@ -1016,33 +1141,53 @@ public class Trime extends InputMethodService
 
   @Override
   public void onText(CharSequence text) { //軟鍵盤
-    Log.info("onText=" + text);
-    mEffect.speakKey(text);
-    String s = text.toString();
-    String t;
-    Pattern p = Pattern.compile("^(\\{[^{}]+\\}).*$");
-    Pattern pText = Pattern.compile("^((\\{Escape\\})?[^{}]+).*$");
-    Matcher m;
+    onText(Macro.compile(text.toString()));
+  }
+
+  private void onText(Macro macro) {
+    Log.info("onText=" + macro);
+    mEffect.speakKey(macro.toString());
+    mEditorWriter.begin();
+    try {
+      runMacro(macro);
+    } finally {
+      mEditorWriter.end();
+    }
+    keyUpNeeded = false;
+  }
+
+  /** 連續的按鍵和按鍵序列一次交給引擎，再按順序上屏，最後只刷新一次編碼 */
+  private void runMacro(Macro macro) {
     //Commit current composition before simulate key sequence
-    if (!Rime.isValidText(text) && isComposing()) {
+    if (!Rime.isValidText(macro.toString()) && isComposing()) {
       Rime.commitComposition();
       commitText();
     }
-    while (s.length() > 0) {
-      m = pText.matcher(s);
-      if (m.matches()){
-        t =  m.group(1);
-        Rime.onText(t);
-        if (!commitText() && !isComposing()) commitText(t);
-        updateComposing();
-      } else {
-        m = p.matcher(s);
-        t = m.matches() ? m.group(1) : s.substring(0, 1);
-        onEvent(new Event(t));
+    updateRimeOption();
+    int n = macro.size();
+    int i = 0;
+    while (i < n) {
+      if (macro.getType(i) == Macro.EVENT) {
+        handleEvent(macro.getEvent(i++));
+        continue;
       }
-      s = s.substring(t.length());
+      int end = macro.getEngineEnd(i);
+      Rime.StepResult[] results = Rime.runMacro(macro, i, end);
+      end = i + results.length; //引擎在未處理的按鍵處停止，處理後從下一步繼續
+      for (int j = i; j < end; j++) {
+        Rime.StepResult r = results[j - i];
+        if (r.commit != null) commitText(r.commit);
+        if (macro.getType(j) == Macro.KEY) {
+          Event event = macro.getEvent(j);
+          if (r.handled) keyUpNeeded = true;
+          else onUnhandledKey(event.getCode(), event.getMask());
+        } else if (r.commit == null && !r.composing) {
+          commitText(macro.getText(j));
+        }
+      }
+      i = end;
     }
-    keyUpNeeded = false;
+    updateComposing();
   }
 
   @Override
@@ -1054,9 +1199,11 @@ public class Trime extends InputMethodService
 
   @Override
   public void onRelease(int keyCode) {
-    if (keyUpNeeded) {
-      onRimeKey(Event.getRimeEvent(keyCode, Rime.META_RELEASE_ON));
-    }
+    if (!mRimeSoftKeys.get(keyCode)) return;
+    mRimeSoftKeys.delete(keyCode);
+    //按下可能還在引擎隊列中，釋放同樣入隊，保證排在按下之後
+    Rime.postKey(
+        Event.getRimeKeycode(keyCode), Event.getRimeModifier(Rime.META_RELEASE_ON), null);
   }
 
   @Override
@@ -1084,6 +1231,15 @@ public class Trime extends InputMethodService
   public void onPickCandidate(int i) {
     // Commit the picked candidate and suggest its following words.
     onPress(0);
+    mEditorWriter.begin();
+    try {
+      pickCandidate(i);
+    } finally {
+      mEditorWriter.end();
+    }
+  }
+
+  private void pickCandidate(int i) {
     if (!isComposing()) {
       if (i >= 0) {
         Rime.toggleOption(i);
@@ -1102,12 +1258,12 @@ public class Trime extends InputMethodService
     String s = Rime.getComposingText(); //當前候選
     if (Function.isEmpty(s)) {
       InputConnection ic = getCurrentInputConnection();
-      CharSequence cs = ic.getSelectedText(0); //選中字
+      CharSequence cs = mSurroundingText.getSelectedText(ic); //選中字
       if (type == 1 && Function.isEmpty(cs)) cs = lastCommittedText; //剛上屏字
       if (Function.isEmpty(cs)) {
-        cs = ic.getTextBeforeCursor(type == 4 ? 1024 : 1, 0); //光標前字
+        cs = mSurroundingText.getTextBeforeCursor(ic, type == 4 ? 1024 : 1); //光標前字
       }
-      if (Function.isEmpty(cs)) cs = ic.getTextAfterCursor(1024, 0); //光標後面所有字
+      if (Function.isEmpty(cs)) cs = mSurroundingText.getTextAfterCursor(ic, 1024); //光標後面所有字
       if (cs != null) s = cs.toString();
     }
     return s;
@@ -1131,16 +1287,24 @@ public class Trime extends InputMethodService
       }
       if (s == null) s = "";
       if (ic != null) {
-        CharSequence cs = ic.getSelectedText(0);
-        if (cs == null || !Function.isEmpty(s)) {
+        Boolean hasSelection = mSurroundingText.hasSelection(); //選區已知時不必查詢編輯框
+        if (hasSelection == null) hasSelection = ic.getSelectedText(0) != null;
+        if (!hasSelection || !Function.isEmpty(s)) {
           // 無選中文本或編碼不爲空時更新編輯區
-          ic.setComposingText(s, 1);
+          mEditorWriter.setComposingText(s);
         }
       }
     }
     if (ic != null && !isWinFixed() && VERSION.SDK_INT >= VERSION_CODES.LOLLIPOP)
       cursorUpdated = ic.requestCursorUpdates(1);
-    if (mCandidateContainer != null) {
+    mFrameScheduler.invalidate(FrameScheduler.COMPOSING | FrameScheduler.COMPOSING_KEYS);
+    if (!onEvaluateInputViewShown()) setCandidatesViewShown(canCompose); //實體鍵盤打字時顯示候選欄
+  }
+
+  /** 每幀最多一次的界面刷新，合併同一幀內的多次編碼更新與選項變化 */
+  @Override
+  public void onFrame(int dirty) {
+    if ((dirty & FrameScheduler.COMPOSING) != 0 && mCandidateContainer != null) {
       if (mShowWindow) {
         int start_num = mComposition.setWindow(min_length);
         mCandidate.setText(start_num);
@@ -1149,8 +1313,9 @@ public class Trime extends InputMethodService
         mCandidate.setText(0);
       }
     }
-    if (mKeyboardView != null) mKeyboardView.invalidateComposingKeys();
-    if (!onEvaluateInputViewShown()) setCandidatesViewShown(canCompose); //實體鍵盤打字時顯示候選欄
+    if (mKeyboardView == null) return;
+    if ((dirty & FrameScheduler.ALL_KEYS) != 0) mKeyboardView.invalidateAllKeys();
+    else if ((dirty & FrameScheduler.COMPOSING_KEYS) != 0) mKeyboardView.invalidateComposingKeys();
   }
 
   public static int getDialogType() {
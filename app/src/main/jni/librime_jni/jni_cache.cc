@@ -0,0 +1,71 @@
+#include "jni_cache.h"
+#include "rime.h"
+
+GlobalRefs GlobalRef;
+
+static bool check_lookup(JNIEnv *env, const void* id, const char* name) {
+  if (id != NULL) return true;
+  if (env->ExceptionCheck()) {
+    env->ExceptionDescribe();
+    env->ExceptionClear();
+  }
+  ALOGE("Unable to find '%s'\n", name);
+  return false;
+}
+
+static bool find_class(JNIEnv *env, const char* name, jclass* ref) {
+  jclass jc = env->FindClass(name);
+  if (!check_lookup(env, jc, name)) return false;
+  *ref = (jclass) env->NewGlobalRef(jc);
+  env->DeleteLocalRef(jc);
+  return *ref != NULL;
+}
+
+static bool get_method(JNIEnv *env, jclass c, const char* name, const char* sig, jmethodID* id) {
+  *id = env->GetMethodID(c, name, sig);
+  return check_lookup(env, *id, name);
+}
+
+static bool get_static_method(JNIEnv *env, jclass c, const char* name, const char* sig,
+                              jmethodID* id) {
+  *id = env->GetStaticMethodID(c, name, sig);
+  return check_lookup(env, *id, name);
+}
+
+static bool get_field(JNIEnv *env, jclass c, const char* name, const char* sig, jfieldID* id) {
+  *id = env->GetFieldID(c, name, sig);
+  return check_lookup(env, *id, name);
+}
+
+// Stops at the first lookup that fails, so no later JNI call runs with an
+// exception pending.
+bool init_global_refs(JNIEnv *env) {
+  GlobalRefs& g = GlobalRef;
+  return find_class(env, "java/lang/String", &g.String)
+      && find_class(env, "java/lang/Boolean", &g.Boolean)
+      && find_class(env, "java/lang/Integer", &g.Integer)
+      && find_class(env, "java/lang/Double", &g.Double)
+      && find_class(env, "java/util/ArrayList", &g.ArrayList)
+      && find_class(env, "java/util/HashMap", &g.HashMap)
+      && find_class(env, CLASSNAME, &g.Rime)
+      && get_method(env, g.Boolean, "<init>", "(Z)V", &g.BooleanInit)
+      && get_method(env, g.Integer, "<init>", "(I)V", &g.IntegerInit)
+      && get_method(env, g.Double, "<init>", "(D)V", &g.DoubleInit)
+      && get_method(env, g.ArrayList, "<init>", "()V", &g.ArrayListInit)
+      && get_method(env, g.ArrayList, "add", "(Ljava/lang/Object;)Z", &g.ArrayListAdd)
+      && get_method(env, g.HashMap, "<init>", "()V", &g.HashMapInit)
+      && get_method(env, g.HashMap, "put", "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;", &g.HashMapPut)
+      && get_static_method(env, g.Rime, "onMessage", "(Ljava/lang/String;Ljava/lang/String;)V", &g.RimeOnMessage);
+}
+
+void release_global_refs(JNIEnv *env) {
+  GlobalRefs& g = GlobalRef;
+  jclass* refs[] = {
+    &g.String, &g.Boolean, &g.Integer, &g.Double, &g.ArrayList, &g.HashMap,
+    &g.Rime,
+  };
+  for (jclass* ref : refs) {
+    if (*ref) env->DeleteGlobalRef(*ref);
+    *ref = NULL;
+  }
+}
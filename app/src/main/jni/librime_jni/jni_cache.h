@@ -0,0 +1,36 @@
+#ifndef JNI_CACHE_H_
+#define JNI_CACHE_H_
+
+#include "rime_jni.h"
+
+// Global class references and member IDs, resolved once in JNI_OnLoad so that
+// the marshalling code never has to call FindClass/GetFieldID per key press.
+struct GlobalRefs {
+  JavaVM* vm;
+
+  jclass String;
+
+  jclass Boolean;
+  jmethodID BooleanInit;
+  jclass Integer;
+  jmethodID IntegerInit;
+  jclass Double;
+  jmethodID DoubleInit;
+
+  jclass ArrayList;
+  jmethodID ArrayListInit;
+  jmethodID ArrayListAdd;
+  jclass HashMap;
+  jmethodID HashMapInit;
+  jmethodID HashMapPut;
+
+  jclass Rime;
+  jmethodID RimeOnMessage;
+};
+
+extern GlobalRefs GlobalRef;
+
+bool init_global_refs(JNIEnv *env);
+void release_global_refs(JNIEnv *env);
+
+#endif  // JNI_CACHE_H_
@@ -1,5 +1,6 @@
 #include "levers.h"
 #include "rime.h"
+#include "jni_cache.h"
 
 // customize settings
 
@@ -71,54 +72,43 @@ jboolean customize_string(JNIEnv *env, jobject thiz, jstring name, jstring key,
 
 jobject _get_schema_list(JNIEnv *env, RimeSchemaList* list) {
   if (list == NULL) return NULL;
-  jclass jc = env->FindClass("java/util/ArrayList");
-  if (jc == NULL) return NULL;
-  jmethodID init = env->GetMethodID(jc, "<init>", "()V");
-  jobject schema_list = env->NewObject(jc, init);
-  jmethodID add = env->GetMethodID(jc, "add", "(Ljava/lang/Object;)Z");
-
-  jclass mapClass = env->FindClass("java/util/HashMap");
-  if (mapClass == NULL) return NULL;
-  jmethodID mapInit = env->GetMethodID(mapClass, "<init>", "()V");
-  jmethodID put = env->GetMethodID(mapClass, "put",
-            "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;");
+  const GlobalRefs& g = GlobalRef;
+  jobject schema_list = env->NewObject(g.ArrayList, g.ArrayListInit);
   int n = list->size;
   if (n > 0) {
     RimeLeversApi* api_ = get_levers();
     for (int i = 0; i < n; i++) {
-      jobject schema_item = env->NewObject(mapClass, mapInit);
+      jobject schema_item = env->NewObject(g.HashMap, g.HashMapInit);
       jstring key;
       jstring value;
       RimeSchemaListItem& item(list->list[i]);
-      key = newJstring(env, "schema_id");
-      value = newJstring(env, item.schema_id);
-      env->CallObjectMethod(schema_item, put, key, value);
+      key = internJstring(env, "schema_id");
+      value = internJstring(env, item.schema_id);
+      env->CallObjectMethod(schema_item, g.HashMapPut, key, value);
       if (item.name) {
-        key = newJstring(env, "name");
+        key = internJstring(env, "name");
         value = newJstring(env, item.name);
-        env->CallObjectMethod(schema_item, put, key, value);
+        env->CallObjectMethod(schema_item, g.HashMapPut, key, value);
       }
       if (0 && item.reserved) { //workaround for jni string overflow
         RimeSchemaInfo* info = (RimeSchemaInfo*) item.reserved;
         key = newJstring(env, "version");
         value = newJstring(env, api_->get_schema_version(info));
-        env->CallObjectMethod(schema_item, put, key, value);
+        env->CallObjectMethod(schema_item, g.HashMapPut, key, value);
         key = newJstring(env, "author");
         value = newJstring(env, api_->get_schema_author(info));
-        env->CallObjectMethod(schema_item, put, key, value);
+        env->CallObjectMethod(schema_item, g.HashMapPut, key, value);
         key = newJstring(env, "description");
         value = newJstring(env, api_->get_schema_description(info));
-        env->CallObjectMethod(schema_item, put, key, value);
+        env->CallObjectMethod(schema_item, g.HashMapPut, key, value);
       }
       env->DeleteLocalRef(key);
       env->DeleteLocalRef(value);
 
-      env->CallBooleanMethod(schema_list, add, schema_item);
+      env->CallBooleanMethod(schema_list, g.ArrayListAdd, schema_item);
       env->DeleteLocalRef(schema_item);
     }
   }
-  env->DeleteLocalRef(mapClass);
-  env->DeleteLocalRef(jc);
   return schema_list;
 }
 
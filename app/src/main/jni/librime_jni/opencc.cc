@@ -1,5 +1,11 @@
 #include <string>
+#include <cstring>
+#include <list>
+#include <memory>
+#include <mutex>
+#include <utility>
 #include "opencc.h"
+#include "jni_cache.h"
 #include <opencc/Common.hpp>
 #include <opencc/SimpleConverter.hpp>
 #include <opencc/DictConverter.hpp>
@@ -8,21 +14,90 @@ using std::string;
 
 // opencc
 
+// Loaded converters keyed by config path, most recently used first. Loading
+// parses the json config and the ocd2 dictionaries, so keep a few around.
+typedef std::pair<string, std::shared_ptr<SimpleConverter>> ConverterEntry;
+static std::list<ConverterEntry> _converters;
+static std::mutex _converters_mutex;
+static const size_t kMaxConverters = 4;
+
+static std::shared_ptr<SimpleConverter> get_converter(JNIEnv *env, jstring name) {
+  const char* s = env->GetStringUTFChars(name, NULL);
+  string config(s);
+  env->ReleaseStringUTFChars(name, s);
+  std::lock_guard<std::mutex> lock(_converters_mutex);
+  for (auto it = _converters.begin(); it != _converters.end(); ++it) {
+    if (it->first == config) {
+      _converters.splice(_converters.begin(), _converters, it);
+      return it->second;
+    }
+  }
+  std::shared_ptr<SimpleConverter> converter(new SimpleConverter(config));
+  _converters.emplace_front(config, converter);
+  if (_converters.size() > kMaxConverters) _converters.pop_back();
+  return converter;
+}
+
 jstring get_opencc_version(JNIEnv *env, jobject thiz) {
   return newJstring(env, OPENCC_VERSION);
 }
 
+static jstring convert(JNIEnv *env, SimpleConverter& converter, jstring line) {
+  if (line == NULL) return NULL;
+  const char* input = env->GetStringUTFChars(line, NULL);
+  const string& converted = converter.Convert(input);
+  env->ReleaseStringUTFChars(line, input);
+  return newJstring(env, converted.c_str());
+}
+
 jstring opencc_convert(JNIEnv *env, jobject thiz, jstring line, jstring name) {
   if (name == NULL) return line;
+  std::shared_ptr<SimpleConverter> converter = get_converter(env, name);
+  return convert(env, *converter, line);
+}
+
+jobjectArray opencc_convert_many(JNIEnv *env, jobject thiz, jobjectArray lines, jstring name) {
+  if (name == NULL || lines == NULL) return lines;
+  std::shared_ptr<SimpleConverter> converter = get_converter(env, name);
+  int n = env->GetArrayLength(lines);
+  jobjectArray jobj = env->NewObjectArray(n, GlobalRef.String, NULL);
+  for (int i = 0; i < n; i++) {
+    jstring line = (jstring) env->GetObjectArrayElement(lines, i);
+    jstring converted = convert(env, *converter, line);
+    env->SetObjectArrayElement(jobj, i, converted);
+    env->DeleteLocalRef(converted);
+    env->DeleteLocalRef(line);
+  }
+  return jobj;
+}
+
+// convert length bytes of utf-8 from one direct buffer into another, returns
+// the bytes written, or the negated size needed when the output is too small
+jint opencc_convert_buffer(JNIEnv *env, jobject thiz, jobject input, jint length, jobject output, jstring name) {
+  if (name == NULL) return 0;
+  const char* in = (const char*) env->GetDirectBufferAddress(input);
+  char* out = (char*) env->GetDirectBufferAddress(output);
+  if (in == NULL || out == NULL || length <= 0) return 0;
+  jlong capacity = env->GetDirectBufferCapacity(output);
+  std::shared_ptr<SimpleConverter> converter = get_converter(env, name);
+  const string& converted = converter->Convert(in, length);
+  jint size = converted.size();
+  if (size > capacity) return -size;
+  memcpy(out, converted.data(), size);
+  return size;
+}
+
+// drop the cached converter of the config, or all of them when name is null
+void opencc_release(JNIEnv *env, jobject thiz, jstring name) {
+  std::lock_guard<std::mutex> lock(_converters_mutex);
+  if (name == NULL) {
+    _converters.clear();
+    return;
+  }
   const char* s = env->GetStringUTFChars(name, NULL);
-  string str(s);
-  SimpleConverter converter(str);
+  string config(s);
   env->ReleaseStringUTFChars(name, s);
-  const char* input = env->GetStringUTFChars(line, NULL);
-  const string& converted = converter.Convert(input);
-  env->ReleaseStringUTFChars(line, input);
-  s = converted.c_str();
-  return newJstring(env, s);
+  _converters.remove_if([&](const ConverterEntry& entry) { return entry.first == config; });
 }
 
 void opencc_convert_dictionary(JNIEnv *env, jobject thiz, jstring jinputFileName,
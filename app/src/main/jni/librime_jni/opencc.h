@@ -5,6 +5,9 @@
 
 jstring get_opencc_version(JNIEnv *env, jobject thiz);
 jstring opencc_convert(JNIEnv *env, jobject thiz, jstring line, jstring name);
+jobjectArray opencc_convert_many(JNIEnv *env, jobject thiz, jobjectArray lines, jstring name);
+jint opencc_convert_buffer(JNIEnv *env, jobject thiz, jobject input, jint length, jobject output, jstring name);
+void opencc_release(JNIEnv *env, jobject thiz, jstring name);
 void opencc_convert_dictionary(JNIEnv *env, jobject thiz, jstring jinputFileName,
     jstring joutputFileName, jstring jformatFrom, jstring jformatTo);
 
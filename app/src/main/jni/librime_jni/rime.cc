@@ -1,35 +1,53 @@
 #include "rime.h"
 #include "levers.h"
+#include "jni_cache.h"
+#include "snapshot.h"
 #include <ctime>
+#include <map>
+#include <string>
+#include <vector>
 #include <rime_api.h>
 
 static jobject _get_value(JNIEnv *env, RimeConfig* config, const char* key);
 static RimeSessionId _session_id = 0;
 
+// librime may notify from the maintenance thread as well as from the
+// thread driving the session, so look up (or attach) the JNIEnv here.
 void on_message(void* context_object,
                 RimeSessionId session_id,
                 const char* message_type,
                 const char* message_value) {
   if (_session_id == 0) return;
-  JNIEnv* env = (JNIEnv*)context_object;
-  if (env == NULL) return;
-  jclass clazz = env->FindClass(CLASSNAME);
-  if (clazz == NULL) return;
-  jmethodID mid_static_method = env->GetStaticMethodID(clazz, "onMessage","(Ljava/lang/String;Ljava/lang/String;)V");
-  if (mid_static_method == NULL) {
-    env->DeleteLocalRef(clazz);
+  JavaVM* vm = GlobalRef.vm;
+  JNIEnv* env = NULL;
+  bool attached = false;
+  jint r = vm->GetEnv(reinterpret_cast<void**>(&env), JNI_VERSION_1_6);
+  if (r == JNI_EDETACHED) {
+#ifdef ANDROID
+    r = vm->AttachCurrentThread(&env, NULL);
+#else
+    r = vm->AttachCurrentThread(reinterpret_cast<void**>(&env), NULL);
+#endif
+    attached = r == JNI_OK;
+  }
+  if (r != JNI_OK || env == NULL) {
+    ALOGE("Unable to get JNIEnv for message [%s] %s\n", message_type, message_value);
     return;
   }
   jstring str_arg1 = newJstring(env, message_type);
   jstring str_arg2 = newJstring(env, message_value);
-  env->CallStaticVoidMethod(clazz, mid_static_method, str_arg1, str_arg2);
-  env->DeleteLocalRef(clazz);
+  env->CallStaticVoidMethod(GlobalRef.Rime, GlobalRef.RimeOnMessage, str_arg1, str_arg2);
+  if (env->ExceptionCheck()) {
+    env->ExceptionDescribe();
+    env->ExceptionClear();
+  }
   env->DeleteLocalRef(str_arg1);
   env->DeleteLocalRef(str_arg2);
+  if (attached) vm->DetachCurrentThread();
 }
 
-void set_notification_handler(JNIEnv *env, jobject thiz) { //TODO
-  RimeSetNotificationHandler(&on_message, env);
+void set_notification_handler(JNIEnv *env, jobject thiz) {
+  RimeSetNotificationHandler(&on_message, NULL);
 }
 
 void init_traits(JNIEnv *env, jstring shared_data_dir, jstring user_data_dir, void (*func)(RimeTraits *)) {
@@ -143,135 +161,212 @@ void clear_composition(JNIEnv *env, jobject thiz) {
 }
 
 // output
-jboolean get_commit(JNIEnv *env, jobject thiz, jobject jcommit) {
-  RIME_STRUCT(RimeCommit, commit);
-  Bool r = RimeGetCommit((RimeSessionId)_session_id, &commit);
-  if (r) {
-    jclass jc = env->GetObjectClass(jcommit);
-    jfieldID fid;
-    fid = env->GetFieldID(jc, "data_size", "I");
-    env->SetIntField(jcommit, fid, commit.data_size);
-    fid = env->GetFieldID(jc, "text", "Ljava/lang/String;");
-    env->SetObjectField(jcommit, fid, newJstring(env, commit.text));
-    env->DeleteLocalRef(jc);
-    RimeFreeCommit(&commit);
+// commit text taken from librime but not yet delivered in a snapshot
+static std::string _commit_text;
+// what was last delivered, so that unchanged states are not rewritten
+static uint32_t _snapshot_hash = 0;
+static jint _snapshot_generation = 0;
+
+static uint32_t fnv1a(uint32_t hash, const void* data, size_t n) {
+  const unsigned char* p = (const unsigned char*)data;
+  for (size_t i = 0; i < n; ++i) hash = (hash ^ p[i]) * 16777619u;
+  return hash;
+}
+
+// number of UTF-16 code units in the first n bytes of a UTF-8 string
+static jint utf16_length(const char* s, int n) {
+  jint count = 0;
+  if (s == NULL) return count;
+  for (int i = 0; i < n && s[i]; count++) {
+    unsigned char c = s[i];
+    if (c < 0x80) i += 1;
+    else if (c < 0xe0) i += 2;
+    else if (c < 0xf0) i += 3;
+    else i += 4, count++;  // surrogate pair
   }
-  return r;
-}
-
-jboolean get_context(JNIEnv *env, jobject thiz, jobject jcontext) {
-  RIME_STRUCT(RimeContext, context);
-  Bool r = RimeGetContext(_session_id, &context);
-  if (r) {
-    jclass jc = env->GetObjectClass(jcontext);
-    jfieldID fid;
-    fid = env->GetFieldID(jc, "data_size", "I");
-    env->SetIntField(jcontext, fid, context.data_size);
-    fid = env->GetFieldID(jc, "commit_text_preview", "Ljava/lang/String;");
-    env->SetObjectField(jcontext, fid, newJstring(env, context.commit_text_preview));
-    jclass jc1 = env->FindClass(CLASSNAME "$RimeMenu");
-    jobject jobj = (jobject) env->AllocObject(jc1);
-    fid = env->GetFieldID(jc1, "num_candidates", "I");
-    env->SetIntField(jobj, fid, context.menu.num_candidates);
-    fid = env->GetFieldID(jc1, "page_size", "I");
-    env->SetIntField(jobj, fid, context.menu.page_size);
-    fid = env->GetFieldID(jc1, "page_no", "I");
-    env->SetIntField(jobj, fid, context.menu.page_no);
-    fid = env->GetFieldID(jc1, "highlighted_candidate_index", "I");
-    env->SetIntField(jobj, fid, context.menu.highlighted_candidate_index);
-    fid = env->GetFieldID(jc1, "is_last_page", "Z");
-    env->SetBooleanField(jobj, fid, context.menu.is_last_page);
-    fid = env->GetFieldID(jc1, "select_keys", "Ljava/lang/String;");
-    env->SetObjectField(jobj, fid, newJstring(env, context.menu.select_keys));
-
-    fid = env->GetFieldID(jc, "select_labels", "[Ljava/lang/String;");
-    Bool has_labels = RIME_STRUCT_HAS_MEMBER(context, context.select_labels) && context.select_labels;
-    if (has_labels) {
-      int n = context.menu.page_size;
-      jclass jcs = env->FindClass("java/lang/String");
-      jobjectArray jlabels = (jobjectArray) env->NewObjectArray(n, jcs, NULL);
-      for (int i = 0; i < n; ++i) {
-        env->SetObjectArrayElement(jlabels, i, newJstring(env, context.select_labels[i]));
+  return count;
+}
+
+static jint write_snapshot(char* buffer, jlong capacity, jint result,
+                           RimeContext* context, RimeStatus* status) {
+  static std::vector<const char*> slots;  // reused to keep the key path allocation free
+  static std::vector<jint> lengths;
+  jint header[SNAPSHOT_HEADER_SIZE] = {0};
+  header[SNAPSHOT_RESULT] = result;
+  slots.assign(SNAPSHOT_SLOT_CANDIDATES, NULL);
+  if (!_commit_text.empty()) {
+    header[SNAPSHOT_FLAGS] |= SNAPSHOT_HAS_COMMIT;
+    slots[SNAPSHOT_SLOT_COMMIT_TEXT] = _commit_text.c_str();
+  }
+  if (context) {
+    header[SNAPSHOT_FLAGS] |= SNAPSHOT_HAS_CONTEXT;
+    header[SNAPSHOT_COMPOSITION_LENGTH] = context->composition.length;
+    header[SNAPSHOT_COMPOSITION_CURSOR_POS] = context->composition.cursor_pos;
+    header[SNAPSHOT_COMPOSITION_SEL_START] = context->composition.sel_start;
+    header[SNAPSHOT_COMPOSITION_SEL_END] = context->composition.sel_end;
+    const char* preedit = context->composition.preedit;
+    header[SNAPSHOT_COMPOSITION_CURSOR_POS_UTF16] = utf16_length(preedit, context->composition.cursor_pos);
+    header[SNAPSHOT_COMPOSITION_SEL_START_UTF16] = utf16_length(preedit, context->composition.sel_start);
+    header[SNAPSHOT_COMPOSITION_SEL_END_UTF16] = utf16_length(preedit, context->composition.sel_end);
+    header[SNAPSHOT_MENU_PAGE_SIZE] = context->menu.page_size;
+    header[SNAPSHOT_MENU_PAGE_NO] = context->menu.page_no;
+    header[SNAPSHOT_MENU_IS_LAST_PAGE] = context->menu.is_last_page;
+    header[SNAPSHOT_MENU_HIGHLIGHTED_CANDIDATE_INDEX] = context->menu.highlighted_candidate_index;
+    header[SNAPSHOT_MENU_NUM_CANDIDATES] = context->menu.num_candidates;
+    slots[SNAPSHOT_SLOT_PREEDIT] = context->composition.preedit;
+    slots[SNAPSHOT_SLOT_SELECT_KEYS] = context->menu.select_keys;
+    slots[SNAPSHOT_SLOT_COMMIT_TEXT_PREVIEW] = context->commit_text_preview;
+    for (int i = 0; i < context->menu.num_candidates; ++i) {
+      slots.push_back(context->menu.candidates[i].text);
+      slots.push_back(context->menu.candidates[i].comment);
+    }
+    if (RIME_STRUCT_HAS_MEMBER(*context, context->select_labels) && context->select_labels) {
+      header[SNAPSHOT_NUM_LABELS] = context->menu.page_size;
+      for (int i = 0; i < context->menu.page_size; ++i) {
+        slots.push_back(context->select_labels[i]);
       }
-      env->SetObjectField(jcontext, fid, jlabels);
-      env->DeleteLocalRef(jlabels);
-      env->DeleteLocalRef(jcs);
-    } else {
-      env->SetObjectField(jcontext, fid, NULL);
     }
+  }
+  if (status) {
+    header[SNAPSHOT_FLAGS] |= SNAPSHOT_HAS_STATUS;
+    header[SNAPSHOT_STATUS_BITS] =
+        (status->is_disabled ? SNAPSHOT_IS_DISABLED : 0) |
+        (status->is_composing ? SNAPSHOT_IS_COMPOSING : 0) |
+        (status->is_ascii_mode ? SNAPSHOT_IS_ASCII_MODE : 0) |
+        (status->is_full_shape ? SNAPSHOT_IS_FULL_SHAPE : 0) |
+        (status->is_simplified ? SNAPSHOT_IS_SIMPLIFIED : 0) |
+        (status->is_traditional ? SNAPSHOT_IS_TRADITIONAL : 0) |
+        (status->is_ascii_punct ? SNAPSHOT_IS_ASCII_PUNCT : 0);
+    slots[SNAPSHOT_SLOT_SCHEMA_ID] = status->schema_id;
+    slots[SNAPSHOT_SLOT_SCHEMA_NAME] = status->schema_name;
+  }
 
-    int n = context.menu.num_candidates;
-    jclass jc2 = env->FindClass(CLASSNAME "$RimeCandidate");
-    jobjectArray jcandidates = (jobjectArray) env->NewObjectArray(n, jc2, NULL);
-    for (int i = 0; i < n;  ++i) {
-      jobject jcandidate = (jobject) env->AllocObject(jc2);
-      fid = env->GetFieldID(jc2, "text", "Ljava/lang/String;");
-      env->SetObjectField(jcandidate, fid, newJstring(env, context.menu.candidates[i].text));
-      fid = env->GetFieldID(jc2, "comment", "Ljava/lang/String;");
-      env->SetObjectField(jcandidate, fid, newJstring(env, context.menu.candidates[i].comment));
-      env->SetObjectArrayElement(jcandidates, i, jcandidate);
-      env->DeleteLocalRef(jcandidate);
-    }
-    fid = env->GetFieldID(jc1, "candidates", "[L" CLASSNAME "$RimeCandidate;");
-    env->SetObjectField(jobj, fid, jcandidates);
-    env->DeleteLocalRef(jcandidates);
-
-    fid = env->GetFieldID(jc, "menu", "L" CLASSNAME "$RimeMenu;");
-    env->SetObjectField(jcontext, fid, jobj);
-
-    jc1 = env->FindClass(CLASSNAME "$RimeComposition");
-    jobj = (jobject) env->AllocObject(jc1);
-    fid = env->GetFieldID(jc1, "length", "I");
-    env->SetIntField(jobj, fid, context.composition.length);
-    fid = env->GetFieldID(jc1, "cursor_pos", "I");
-    env->SetIntField(jobj, fid, context.composition.cursor_pos);
-    fid = env->GetFieldID(jc1, "sel_start", "I");
-    env->SetIntField(jobj, fid, context.composition.sel_start);
-    fid = env->GetFieldID(jc1, "sel_end", "I");
-    env->SetIntField(jobj, fid, context.composition.sel_end);
-    fid = env->GetFieldID(jc1, "preedit", "Ljava/lang/String;");
-    env->SetObjectField(jobj, fid, newJstring(env, context.composition.preedit));
-    fid = env->GetFieldID(jc, "composition", "L" CLASSNAME "$RimeComposition;");
-    env->SetObjectField(jcontext, fid, jobj);
-
-    env->DeleteLocalRef(jc);
-    env->DeleteLocalRef(jc1);
-    env->DeleteLocalRef(jc2);
-    RimeFreeContext(&context);
+  int n = slots.size();
+  header[SNAPSHOT_NUM_SLOTS] = n;
+  size_t size = (SNAPSHOT_HEADER_SIZE + 2 * n) * sizeof(jint);
+  lengths.resize(n);
+  jint flags = header[SNAPSHOT_FLAGS] & ~SNAPSHOT_HAS_COMMIT;
+  uint32_t hash = fnv1a(2166136261u, &flags, sizeof(flags));
+  hash = fnv1a(hash, header + SNAPSHOT_COMPOSITION_LENGTH,
+               (SNAPSHOT_NUM_SLOTS - SNAPSHOT_COMPOSITION_LENGTH + 1) * sizeof(jint));
+  for (int i = 0; i < n; ++i) {
+    lengths[i] = slots[i] ? strlen(slots[i]) : 0;
+    size += lengths[i];
+    if (i == SNAPSHOT_SLOT_COMMIT_TEXT) continue;
+    hash = fnv1a(hash, &lengths[i], sizeof(jint));
+    hash = fnv1a(hash, slots[i], lengths[i]);
   }
-  return r;
+  header[SNAPSHOT_SIZE] = size;
+  // Java stamps a fresh or reset buffer with an invalid generation, so the
+  // buffer holds the last snapshot only when its generation is still current
+  jint* fields = (jint*)buffer;
+  bool changed = hash != _snapshot_hash || fields[SNAPSHOT_GENERATION] != _snapshot_generation;
+  header[SNAPSHOT_GENERATION] = changed ? _snapshot_generation + 1 : _snapshot_generation;
+  if (!changed) header[SNAPSHOT_FLAGS] |= SNAPSHOT_UNCHANGED;
+  if (!changed && _commit_text.empty()) {  // the previous snapshot is still valid
+    fields[SNAPSHOT_FLAGS] = header[SNAPSHOT_FLAGS];
+    fields[SNAPSHOT_RESULT] = result;
+    return fields[SNAPSHOT_SIZE];
+  }
+  if ((jlong)size > capacity) {  // let the caller grow the buffer and retry
+    memcpy(buffer, header, sizeof(header));
+    return size;
+  }
+
+  memcpy(buffer, header, sizeof(header));
+  jint* table = (jint*)(buffer + sizeof(header));
+  jint offset = (SNAPSHOT_HEADER_SIZE + 2 * n) * sizeof(jint);
+  for (int i = 0; i < n; ++i) {
+    table[2 * i] = offset;
+    table[2 * i + 1] = lengths[i];
+    if (lengths[i] > 0) memcpy(buffer + offset, slots[i], lengths[i]);
+    offset += lengths[i];
+  }
+  _commit_text.clear();
+  _snapshot_hash = hash;
+  _snapshot_generation = header[SNAPSHOT_GENERATION];
+  return size;
 }
 
-jboolean get_status(JNIEnv *env, jobject thiz, jobject jstatus) {
+static jint snapshot(JNIEnv *env, jobject jbuffer, jint result) {
+  char* buffer = (char*)env->GetDirectBufferAddress(jbuffer);
+  jlong capacity = env->GetDirectBufferCapacity(jbuffer);
+  if (buffer == NULL || capacity < (jlong)(SNAPSHOT_HEADER_SIZE * sizeof(jint))) return -1;
+  RIME_STRUCT(RimeCommit, commit);
+  if (RimeGetCommit(_session_id, &commit)) {
+    if (commit.text) _commit_text += commit.text;
+    RimeFreeCommit(&commit);
+  }
+  RIME_STRUCT(RimeContext, context);
   RIME_STRUCT(RimeStatus, status);
-  Bool r = RimeGetStatus(_session_id, &status);
-  if (r) {
-    jclass jc = env->GetObjectClass(jstatus);
-    jfieldID fid;
-    fid = env->GetFieldID(jc, "data_size", "I");
-    env->SetIntField(jstatus, fid, status.data_size);
-    fid = env->GetFieldID(jc, "schema_id", "Ljava/lang/String;");
-    env->SetObjectField(jstatus, fid, newJstring(env, status.schema_id));
-    fid = env->GetFieldID(jc, "schema_name", "Ljava/lang/String;");
-    env->SetObjectField(jstatus, fid, newJstring(env, status.schema_name));
-    fid = env->GetFieldID(jc, "is_disabled", "Z");
-    env->SetBooleanField(jstatus, fid, status.is_disabled);
-    fid = env->GetFieldID(jc, "is_composing", "Z");
-    env->SetBooleanField(jstatus, fid, status.is_composing);
-    fid = env->GetFieldID(jc, "is_ascii_mode", "Z");
-    env->SetBooleanField(jstatus, fid, status.is_ascii_mode);
-    fid = env->GetFieldID(jc, "is_full_shape", "Z");
-    env->SetBooleanField(jstatus, fid, status.is_full_shape);
-    fid = env->GetFieldID(jc, "is_simplified", "Z");
-    env->SetBooleanField(jstatus, fid, status.is_simplified);
-    fid = env->GetFieldID(jc, "is_traditional", "Z");
-    env->SetBooleanField(jstatus, fid, status.is_traditional);
-    fid = env->GetFieldID(jc, "is_ascii_punct", "Z");
-    env->SetBooleanField(jstatus, fid, status.is_ascii_punct);
-    env->DeleteLocalRef(jc);
-    RimeFreeStatus(&status);
+  Bool has_context = RimeGetContext(_session_id, &context);
+  Bool has_status = RimeGetStatus(_session_id, &status);
+  jint size = write_snapshot(buffer, capacity, result,
+                             has_context ? &context : NULL, has_status ? &status : NULL);
+  if (has_context) RimeFreeContext(&context);
+  if (has_status) RimeFreeStatus(&status);
+  return size;
+}
+
+jint get_snapshot(JNIEnv *env, jobject thiz, jobject jbuffer) {
+  return snapshot(env, jbuffer, 0);
+}
+
+// input with snapshot: perform the action and write the resulting commit,
+// context and status in the same JNI call
+jint process_key_snapshot(JNIEnv *env, jobject thiz, jint keycode, jint mask, jobject jbuffer) {
+  return snapshot(env, jbuffer, RimeProcessKey(_session_id, keycode, mask));
+}
+
+// process coalesced keys in order and stop after the first one that is not
+// handled, so that its fallback runs before any later key; the result is the
+// number of keys handled before it
+jint process_key_batch(JNIEnv *env, jobject thiz, jintArray keycodes, jintArray masks,
+                       jint offset, jint count, jobject jbuffer) {
+  int n = env->GetArrayLength(keycodes);
+  if (env->GetArrayLength(masks) < n) n = env->GetArrayLength(masks);
+  if (offset < 0 || count < 0 || offset + count > n) return -1;
+  jint* codes = env->GetIntArrayElements(keycodes, NULL);
+  if (codes == NULL) return -1; /* OutOfMemoryError already thrown */
+  jint* mods = env->GetIntArrayElements(masks, NULL);
+  if (mods == NULL) {
+    env->ReleaseIntArrayElements(keycodes, codes, JNI_ABORT);
+    return -1;
   }
-  return r;
+  int handled = 0;
+  for (int i = offset; i < offset + count; i++) {
+    if (!RimeProcessKey(_session_id, codes[i], mods[i])) break;
+    handled++;
+  }
+  env->ReleaseIntArrayElements(keycodes, codes, JNI_ABORT);
+  env->ReleaseIntArrayElements(masks, mods, JNI_ABORT);
+  return snapshot(env, jbuffer, handled);
+}
+
+jint simulate_key_sequence_snapshot(JNIEnv *env, jobject thiz, jstring key_sequence, jobject jbuffer) {
+  const char* str = key_sequence == NULL ? NULL : env->GetStringUTFChars(key_sequence, NULL);
+  if (str == NULL) return -1; /* OutOfMemoryError already thrown */
+  jboolean r = RimeSimulateKeySequence(_session_id, str);
+  env->ReleaseStringUTFChars(key_sequence, str);
+  return snapshot(env, jbuffer, r);
+}
+
+jint commit_composition_snapshot(JNIEnv *env, jobject thiz, jobject jbuffer) {
+  return snapshot(env, jbuffer, RimeCommitComposition(_session_id));
+}
+
+jint clear_composition_snapshot(JNIEnv *env, jobject thiz, jobject jbuffer) {
+  RimeClearComposition(_session_id);
+  return snapshot(env, jbuffer, 0);
+}
+
+jint select_candidate_snapshot(JNIEnv *env, jobject thiz, jint index, jobject jbuffer) {
+  return snapshot(env, jbuffer, rime_get_api()->select_candidate_on_current_page(_session_id, index));
+}
+
+jint set_caret_pos_snapshot(JNIEnv *env, jobject thiz, jint caret_pos, jobject jbuffer) {
+  rime_get_api()->set_caret_pos(_session_id, caret_pos);
+  return snapshot(env, jbuffer, 0);
 }
 
 static bool is_save_option(const char* p) {
@@ -383,11 +478,7 @@ jobject config_get_bool(JNIEnv *env, jobject thiz, jstring name, jstring key) {
   }
   RimeConfigClose(&config);
   if (!b) return NULL;
-  jclass jc = env->FindClass("java/lang/Boolean");
-  jmethodID ctorID = env->GetMethodID(jc, "<init>", "(Z)V");
-  jobject ret = (jobject)env->NewObject(jc, ctorID, value);
-  env->DeleteLocalRef(jc);
-  return ret;
+  return env->NewObject(GlobalRef.Boolean, GlobalRef.BooleanInit, value);
 }
 
 jboolean config_set_bool(JNIEnv *env, jobject thiz, jstring name, jstring key, jboolean value) {
@@ -417,11 +508,7 @@ jobject config_get_int(JNIEnv *env, jobject thiz, jstring name, jstring key) {
   }
   RimeConfigClose(&config);
   if (!b) return NULL;
-  jclass jc = env->FindClass("java/lang/Integer");
-  jmethodID ctorID = env->GetMethodID(jc, "<init>", "(I)V");
-  jobject ret = (jobject)env->NewObject(jc, ctorID, value);
-  env->DeleteLocalRef(jc);
-  return ret;
+  return env->NewObject(GlobalRef.Integer, GlobalRef.IntegerInit, value);
 }
 
 jboolean config_set_int(JNIEnv *env, jobject thiz, jstring name, jstring key, jint value) {
@@ -451,11 +538,7 @@ jobject config_get_double(JNIEnv *env, jobject thiz, jstring name, jstring key)
   }
   RimeConfigClose(&config);
   if (!b) return NULL;
-  jclass jc = env->FindClass("java/lang/Double");
-  jmethodID ctorID = env->GetMethodID(jc, "<init>", "(D)V");
-  jobject ret = (jobject)env->NewObject(jc, ctorID, value);
-  env->DeleteLocalRef(jc);
-  return ret;
+  return env->NewObject(GlobalRef.Double, GlobalRef.DoubleInit, value);
 }
 
 jboolean config_set_double(JNIEnv *env, jobject thiz, jstring name, jstring key, jdouble value) {
@@ -558,19 +641,19 @@ jstring get_librime_version(JNIEnv *env, jobject thiz) {
 
 jobjectArray get_string_list(JNIEnv *env, RimeConfig* config, const char* key) {
   jobjectArray jobj = NULL;
-  jclass jc = env->FindClass("java/lang/String");
   int n = RimeConfigListSize(config, key);
   if (n > 0) {
-    jobj = (jobjectArray) env->NewObjectArray(n, jc, NULL);
+    jobj = env->NewObjectArray(n, GlobalRef.String, NULL);
     RimeConfigIterator iter = {0};
     RimeConfigBeginList(&iter, config, key);
     int i = 0;
     while(RimeConfigNext(&iter)) {
-      env->SetObjectArrayElement(jobj, i++, newJstring(env, RimeConfigGetCString(config, iter.path)));
+      jstring s = newJstring(env, RimeConfigGetCString(config, iter.path));
+      env->SetObjectArrayElement(jobj, i++, s);
+      env->DeleteLocalRef(s);
     }
     RimeConfigEnd(&iter);
   }
-  env->DeleteLocalRef(jc);
   return jobj;
 }
 
@@ -578,18 +661,13 @@ static jobject _get_list(JNIEnv *env, RimeConfig* config, const char* key) {
   RimeConfigIterator iter = {0};
   bool b = RimeConfigBeginList(&iter, config, key);
   if (!b) return NULL;
-  jclass jc = env->FindClass("java/util/ArrayList");
-  if(jc == NULL) return NULL;
-  jmethodID init = env->GetMethodID(jc, "<init>", "()V");
-  jobject jobj = env->NewObject(jc, init);
-  jmethodID add = env->GetMethodID(jc, "add", "(Ljava/lang/Object;)Z");
+  jobject jobj = env->NewObject(GlobalRef.ArrayList, GlobalRef.ArrayListInit);
   while (RimeConfigNext(&iter)) {
     jobject o = _get_value(env, config, iter.path);
-    env->CallBooleanMethod(jobj, add, o);
+    env->CallBooleanMethod(jobj, GlobalRef.ArrayListAdd, o);
     env->DeleteLocalRef(o);
   }
   RimeConfigEnd(&iter);
-  env->DeleteLocalRef(jc);
   return jobj;
 }
 
@@ -612,21 +690,16 @@ static jobject _get_map(JNIEnv *env, RimeConfig* config, const char* key) {
   RimeConfigIterator iter = {0};
   bool b = RimeConfigBeginMap(&iter, config, key);
   if (!b) return NULL;
-  jclass jc = env->FindClass("java/util/HashMap");
-  if(jc == NULL) return NULL;
-  jmethodID init = env->GetMethodID(jc, "<init>", "()V");
-  jobject jobj = env->NewObject(jc, init);
-  jmethodID put = env->GetMethodID(jc, "put",
-            "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;");
+  jobject jobj = env->NewObject(GlobalRef.HashMap, GlobalRef.HashMapInit);
   while (RimeConfigNext(&iter)) {
-    jstring s = newJstring(env, iter.key);
+    jstring s = internJstring(env, iter.key);
     jobject o = _get_value(env, config, iter.path);
-    env->CallObjectMethod(jobj, put, s, o);
+    jobject prev = env->CallObjectMethod(jobj, GlobalRef.HashMapPut, s, o);
+    env->DeleteLocalRef(prev);
     env->DeleteLocalRef(s);
     env->DeleteLocalRef(o);
   }
   RimeConfigEnd(&iter);
-  env->DeleteLocalRef(jc);
   return jobj;
 }
 
@@ -647,10 +720,6 @@ jobject config_get_map(JNIEnv *env, jobject thiz, jstring name, jstring key) {
 
 jobject _get_value(JNIEnv *env, RimeConfig* config, const char* key) {
   jobject ret;
-  jclass jc;
-  jmethodID init;
-  Bool b_value;
-
   const char *value = RimeConfigGetCString(config, key);
   if (value != NULL) return newJstring(env, value);
   ret = _get_list(env, config, key);
@@ -689,6 +758,209 @@ jobject schema_get_value(JNIEnv *env, jobject thiz, jstring name, jstring key) {
   return ret;
 }
 
+// configuration handles: open a config once and read many keys from it
+jlong config_open(JNIEnv *env, jobject thiz, jstring name) {
+  const char* s = env->GetStringUTFChars(name, NULL);
+  RimeConfig* config = new RimeConfig();
+  Bool b = RimeConfigOpen(s, config);
+  env->ReleaseStringUTFChars(name, s);
+  if (!b) {
+    delete config;
+    return 0;
+  }
+  return reinterpret_cast<jlong>(config);
+}
+
+void config_close(JNIEnv *env, jobject thiz, jlong handle) {
+  RimeConfig* config = reinterpret_cast<RimeConfig*>(handle);
+  if (config == NULL) return;
+  RimeConfigClose(config);
+  delete config;
+}
+
+jobjectArray config_get_keys(JNIEnv *env, jobject thiz, jlong handle, jstring key) {
+  RimeConfig* config = reinterpret_cast<RimeConfig*>(handle);
+  if (config == NULL) return NULL;
+  const char* s = env->GetStringUTFChars(key, NULL);
+  std::vector<std::string> keys;
+  RimeConfigIterator iter = {0};
+  bool b = RimeConfigBeginMap(&iter, config, s);
+  env->ReleaseStringUTFChars(key, s);
+  if (!b) return NULL;
+  while (RimeConfigNext(&iter)) keys.push_back(iter.key);
+  RimeConfigEnd(&iter);
+  jobjectArray jobj = env->NewObjectArray(keys.size(), GlobalRef.String, NULL);
+  for (size_t i = 0; i < keys.size(); i++) {
+    jstring k = internJstring(env, keys[i].c_str());
+    env->SetObjectArrayElement(jobj, i, k);
+    env->DeleteLocalRef(k);
+  }
+  return jobj;
+}
+
+// calls get(config, key, i) for every key in the array, stopping on NULL keys
+template <typename Getter>
+static void config_for_each_key(JNIEnv *env, jlong handle, jobjectArray keys, Getter get) {
+  RimeConfig* config = reinterpret_cast<RimeConfig*>(handle);
+  if (config == NULL) return;
+  int n = env->GetArrayLength(keys);
+  for (int i = 0; i < n; i++) {
+    jstring key = (jstring) env->GetObjectArrayElement(keys, i);
+    if (key == NULL) continue;
+    const char* s = env->GetStringUTFChars(key, NULL);
+    get(config, s, i);
+    env->ReleaseStringUTFChars(key, s);
+    env->DeleteLocalRef(key);
+  }
+}
+
+jbooleanArray config_get_bools(JNIEnv *env, jobject thiz, jlong handle, jobjectArray keys, jboolean default_value) {
+  std::vector<jboolean> values(env->GetArrayLength(keys), default_value);
+  config_for_each_key(env, handle, keys, [&](RimeConfig* config, const char* key, int i) {
+    Bool value;
+    if (RimeConfigGetBool(config, key, &value)) values[i] = value;
+  });
+  jbooleanArray jobj = env->NewBooleanArray(values.size());
+  env->SetBooleanArrayRegion(jobj, 0, values.size(), values.data());
+  return jobj;
+}
+
+jintArray config_get_ints(JNIEnv *env, jobject thiz, jlong handle, jobjectArray keys, jint default_value) {
+  std::vector<jint> values(env->GetArrayLength(keys), default_value);
+  config_for_each_key(env, handle, keys, [&](RimeConfig* config, const char* key, int i) {
+    int value;
+    if (RimeConfigGetInt(config, key, &value)) values[i] = value;
+  });
+  jintArray jobj = env->NewIntArray(values.size());
+  env->SetIntArrayRegion(jobj, 0, values.size(), values.data());
+  return jobj;
+}
+
+jdoubleArray config_get_doubles(JNIEnv *env, jobject thiz, jlong handle, jobjectArray keys, jdouble default_value) {
+  std::vector<jdouble> values(env->GetArrayLength(keys), default_value);
+  config_for_each_key(env, handle, keys, [&](RimeConfig* config, const char* key, int i) {
+    double value;
+    if (RimeConfigGetDouble(config, key, &value)) values[i] = value;
+  });
+  jdoubleArray jobj = env->NewDoubleArray(values.size());
+  env->SetDoubleArrayRegion(jobj, 0, values.size(), values.data());
+  return jobj;
+}
+
+// scalar values of the keys, NULL for missing keys, lists and maps
+jobjectArray config_get_strings(JNIEnv *env, jobject thiz, jlong handle, jobjectArray keys) {
+  jobjectArray jobj = env->NewObjectArray(env->GetArrayLength(keys), GlobalRef.String, NULL);
+  config_for_each_key(env, handle, keys, [&](RimeConfig* config, const char* key, int i) {
+    jstring value = newJstring(env, RimeConfigGetCString(config, key));
+    env->SetObjectArrayElement(jobj, i, value);
+    env->DeleteLocalRef(value);
+  });
+  return jobj;
+}
+
+jobject config_get_node(JNIEnv *env, jobject thiz, jlong handle, jstring key) {
+  RimeConfig* config = reinterpret_cast<RimeConfig*>(handle);
+  if (config == NULL) return NULL;
+  const char* s = env->GetStringUTFChars(key, NULL);
+  jobject ret = _get_value(env, config, s);
+  env->ReleaseStringUTFChars(key, s);
+  return ret;
+}
+
+// binary theme snapshot, see ThemeSnapshot.java: a string table followed by
+// the nodes, every int big-endian; the magic, version and key are left to Java
+enum { THEME_NULL, THEME_STRING, THEME_LIST, THEME_MAP };
+
+struct ThemeWriter {
+  std::vector<char> body;
+  std::vector<std::string> strings;
+  std::map<std::string, int> indexes;
+
+  void put_int(std::vector<char>& out, int value) {
+    for (int shift = 24; shift >= 0; shift -= 8) out.push_back((char) (value >> shift));
+  }
+
+  void set_int(size_t offset, int value) {
+    for (int i = 0; i < 4; i++) body[offset + i] = (char) (value >> (24 - i * 8));
+  }
+
+  void put_string(const char* s) {
+    std::map<std::string, int>::iterator it = indexes.find(s);
+    int index;
+    if (it == indexes.end()) {
+      index = strings.size();
+      strings.push_back(s);
+      indexes[s] = index;
+    } else {
+      index = it->second;
+    }
+    put_int(body, index);
+  }
+
+  void put_node(RimeConfig* config, const char* key) {
+    const char* value = RimeConfigGetCString(config, key);
+    if (value != NULL) {
+      body.push_back(THEME_STRING);
+      put_string(value);
+      return;
+    }
+    RimeConfigIterator iter = {0};
+    bool is_map = false;
+    if (!RimeConfigBeginList(&iter, config, key)) {
+      if (!RimeConfigBeginMap(&iter, config, key)) {
+        body.push_back(THEME_NULL);
+        return;
+      }
+      is_map = true;
+    }
+    body.push_back(is_map ? THEME_MAP : THEME_LIST);
+    size_t count_offset = body.size();
+    put_int(body, 0);
+    int n = 0;
+    while (RimeConfigNext(&iter)) {
+      if (is_map) put_string(iter.key);
+      put_node(config, iter.path);
+      n++;
+    }
+    RimeConfigEnd(&iter);
+    set_int(count_offset, n);
+  }
+
+  std::vector<char> finish() {
+    std::vector<char> out;
+    put_int(out, strings.size());
+    for (size_t i = 0; i < strings.size(); i++) {
+      put_int(out, strings[i].size());
+      out.insert(out.end(), strings[i].begin(), strings[i].end());
+    }
+    out.insert(out.end(), body.begin(), body.end());
+    return out;
+  }
+};
+
+// writes a map of the keys straight from the config tree, without building
+// Java objects for every node
+jbyteArray config_get_snapshot(JNIEnv *env, jobject thiz, jlong handle, jobjectArray keys) {
+  RimeConfig* config = reinterpret_cast<RimeConfig*>(handle);
+  if (config == NULL) return NULL;
+  ThemeWriter writer;
+  int n = env->GetArrayLength(keys);
+  writer.body.push_back(THEME_MAP);
+  writer.put_int(writer.body, n);
+  for (int i = 0; i < n; i++) {
+    jstring key = (jstring) env->GetObjectArrayElement(keys, i);
+    const char* s = env->GetStringUTFChars(key, NULL);
+    writer.put_string(s);
+    writer.put_node(config, s);
+    env->ReleaseStringUTFChars(key, s);
+    env->DeleteLocalRef(key);
+  }
+  std::vector<char> out = writer.finish();
+  jbyteArray jobj = env->NewByteArray(out.size());
+  env->SetByteArrayRegion(jobj, 0, out.size(), reinterpret_cast<const jbyte*>(out.data()));
+  return jobj;
+}
+
 jboolean run_task(JNIEnv *env, jobject thiz, jstring task_name) {
   const char* s = env->GetStringUTFChars(task_name, NULL);
   RimeConfig config = {0};
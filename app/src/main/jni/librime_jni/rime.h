@@ -39,9 +39,16 @@ jboolean process_key(JNIEnv *env, jobject thiz, jint keycode, jint mask);
 jboolean commit_composition(JNIEnv *env, jobject thiz);
 void clear_composition(JNIEnv *env, jobject thiz);
 // output
-jboolean get_commit(JNIEnv *env, jobject thiz, jobject jcommit);
-jboolean get_context(JNIEnv *env, jobject thiz, jobject jcontext);
-jboolean get_status(JNIEnv *env, jobject thiz, jobject jstatus);
+jint get_snapshot(JNIEnv *env, jobject thiz, jobject jbuffer);
+// input with snapshot
+jint process_key_snapshot(JNIEnv *env, jobject thiz, jint keycode, jint mask, jobject jbuffer);
+jint process_key_batch(JNIEnv *env, jobject thiz, jintArray keycodes, jintArray masks,
+                       jint offset, jint count, jobject jbuffer);
+jint simulate_key_sequence_snapshot(JNIEnv *env, jobject thiz, jstring key_sequence, jobject jbuffer);
+jint commit_composition_snapshot(JNIEnv *env, jobject thiz, jobject jbuffer);
+jint clear_composition_snapshot(JNIEnv *env, jobject thiz, jobject jbuffer);
+jint select_candidate_snapshot(JNIEnv *env, jobject thiz, jint index, jobject jbuffer);
+jint set_caret_pos_snapshot(JNIEnv *env, jobject thiz, jint caret_pos, jobject jbuffer);
 // runtime options
 void set_option(JNIEnv *env, jobject thiz, jstring option, jboolean value);
 jboolean get_option(JNIEnv *env, jobject thiz, jstring option);
@@ -64,6 +71,16 @@ jobject config_get_list(JNIEnv *env, jobject thiz, jstring name, jstring key);
 jobject config_get_map(JNIEnv *env, jobject thiz, jstring name, jstring key);
 jobject config_get_value(JNIEnv *env, jobject thiz, jstring name, jstring key);
 jobject schema_get_value(JNIEnv *env, jobject thiz, jstring schema_id, jstring key);
+// configuration handles
+jlong config_open(JNIEnv *env, jobject thiz, jstring name);
+void config_close(JNIEnv *env, jobject thiz, jlong handle);
+jobjectArray config_get_keys(JNIEnv *env, jobject thiz, jlong handle, jstring key);
+jbooleanArray config_get_bools(JNIEnv *env, jobject thiz, jlong handle, jobjectArray keys, jboolean default_value);
+jintArray config_get_ints(JNIEnv *env, jobject thiz, jlong handle, jobjectArray keys, jint default_value);
+jdoubleArray config_get_doubles(JNIEnv *env, jobject thiz, jlong handle, jobjectArray keys, jdouble default_value);
+jobjectArray config_get_strings(JNIEnv *env, jobject thiz, jlong handle, jobjectArray keys);
+jobject config_get_node(JNIEnv *env, jobject thiz, jlong handle, jstring key);
+jbyteArray config_get_snapshot(JNIEnv *env, jobject thiz, jlong handle, jobjectArray keys);
 
 jboolean simulate_key_sequence(JNIEnv *env, jobject thiz, jstring key_sequence);
 jstring get_input(JNIEnv *env, jobject thiz);
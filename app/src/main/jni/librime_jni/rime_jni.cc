@@ -3,25 +3,123 @@
 #include "levers.h"
 #include "key_table.h"
 #include "opencc.h"
+#include "jni_cache.h"
+#include <list>
+#include <mutex>
+#include <unordered_map>
+#include <vector>
 
 template <typename T, int N>
 char (&ArraySizeHelper(T (&array)[N]))[N];
 #define NELEMS(x) (sizeof(ArraySizeHelper(x)))
 
+// Decode n bytes of UTF-8 into out, which must hold n units, and return the
+// number of UTF-16 units. Invalid bytes become U+FFFD.
+static jsize utf8_to_utf16(const unsigned char* s, int n, jchar* out) {
+  jsize len = 0;
+  int i = 0;
+  while (i < n) {
+    unsigned int c = s[i];
+    if (c < 0x80) {
+      out[len++] = c;
+      i++;
+      continue;
+    }
+    int extra;
+    unsigned int min;
+    if ((c & 0xe0) == 0xc0) {
+      extra = 1; c &= 0x1f; min = 0x80;
+    } else if ((c & 0xf0) == 0xe0) {
+      extra = 2; c &= 0x0f; min = 0x800;
+    } else if ((c & 0xf8) == 0xf0) {
+      extra = 3; c &= 0x07; min = 0x10000;
+    } else {
+      out[len++] = 0xfffd;
+      i++;
+      continue;
+    }
+    int j = 1;
+    for (; j <= extra && i + j < n; j++) {
+      unsigned int b = s[i + j];
+      if ((b & 0xc0) != 0x80) break;
+      c = (c << 6) | (b & 0x3f);
+    }
+    if (j <= extra || c < min || c > 0x10ffff || (c >= 0xd800 && c <= 0xdfff)) {
+      out[len++] = 0xfffd;
+      i++;
+      continue;
+    }
+    i += j;
+    if (c >= 0x10000) {
+      c -= 0x10000;
+      out[len++] = 0xd800 | (c >> 10);
+      out[len++] = 0xdc00 | (c & 0x3ff);
+    } else {
+      out[len++] = c;
+    }
+  }
+  return len;
+}
+
+// Config keys and schema ids repeat on every read, keep one global reference
+// for each of them. The table is bounded and drops the least recently used.
+static const size_t kInternMaxLength = 32;
+static const size_t kInternMaxSize = 256;
+struct Interned {
+  jstring str;
+  std::list<std::string>::iterator use;
+};
+static std::unordered_map<std::string, Interned> _interned;
+static std::list<std::string> _interned_uses;  // most recently used first
+static std::mutex _interned_mutex;
+
+void release_interned_strings(JNIEnv* env) {
+  std::lock_guard<std::mutex> lock(_interned_mutex);
+  for (auto& it : _interned) env->DeleteGlobalRef(it.second.str);
+  _interned.clear();
+  _interned_uses.clear();
+}
+
 jstring newJstring(JNIEnv* env, const char* pat)
 {
   if (pat == NULL) return NULL;
   int n = strlen(pat);
   if (n == 0) return NULL;
-  jclass strClass = env->FindClass("java/lang/String");
-  jmethodID init = env->GetMethodID(strClass, "<init>", "([BLjava/lang/String;)V");
-  jbyteArray bytes = env->NewByteArray(n);
-  env->SetByteArrayRegion(bytes, 0, n, (jbyte*)pat);
-  jstring encoding = env->NewStringUTF("utf-8");
-  jstring ret = (jstring)env->NewObject(strClass, init, bytes, encoding);
-  env->DeleteLocalRef(strClass);
-  env->DeleteLocalRef(bytes);
-  env->DeleteLocalRef(encoding);
+  jchar buf[BUFSIZE];
+  std::vector<jchar> chars;
+  jchar* out = buf;
+  if (n > BUFSIZE) {
+    chars.resize(n);
+    out = chars.data();
+  }
+  jsize len = utf8_to_utf16((const unsigned char*) pat, n, out);
+  return env->NewString(out, len);
+}
+
+jstring internJstring(JNIEnv* env, const char* pat)
+{
+  if (pat == NULL || strlen(pat) > kInternMaxLength) return newJstring(env, pat);
+  {
+    std::lock_guard<std::mutex> lock(_interned_mutex);
+    auto it = _interned.find(pat);
+    if (it != _interned.end()) {
+      _interned_uses.splice(_interned_uses.begin(), _interned_uses, it->second.use);
+      return (jstring) env->NewLocalRef(it->second.str);
+    }
+  }
+  jstring ret = newJstring(env, pat);
+  if (ret == NULL) return NULL;
+  std::lock_guard<std::mutex> lock(_interned_mutex);
+  if (_interned.find(pat) != _interned.end()) return ret;
+  if (_interned.size() >= kInternMaxSize) {
+    auto last = _interned.find(_interned_uses.back());
+    env->DeleteGlobalRef(last->second.str);
+    _interned.erase(last);
+    _interned_uses.pop_back();
+  }
+  _interned_uses.push_front(pat);
+  Interned interned = {(jstring) env->NewGlobalRef(ret), _interned_uses.begin()};
+  _interned[pat] = interned;
   return ret;
 }
 
@@ -142,19 +240,45 @@ static const JNINativeMethod sMethods[] = {
     },
     // output
     {
-        const_cast<char *>("get_commit"),
-        const_cast<char *>("(L" CLASSNAME "$RimeCommit;)Z"),
-        reinterpret_cast<void *>(get_commit)
+        const_cast<char *>("get_snapshot"),
+        const_cast<char *>("(Ljava/nio/ByteBuffer;)I"),
+        reinterpret_cast<void *>(get_snapshot)
     },
+    // input with snapshot
     {
-        const_cast<char *>("get_context"),
-        const_cast<char *>("(L" CLASSNAME "$RimeContext;)Z"),
-        reinterpret_cast<void *>(get_context)
+        const_cast<char *>("process_key_snapshot"),
+        const_cast<char *>("(IILjava/nio/ByteBuffer;)I"),
+        reinterpret_cast<void *>(process_key_snapshot)
     },
     {
-        const_cast<char *>("get_status"),
-        const_cast<char *>("(L" CLASSNAME "$RimeStatus;)Z"),
-        reinterpret_cast<void *>(get_status)
+        const_cast<char *>("process_key_batch"),
+        const_cast<char *>("([I[IIILjava/nio/ByteBuffer;)I"),
+        reinterpret_cast<void *>(process_key_batch)
+    },
+    {
+        const_cast<char *>("simulate_key_sequence_snapshot"),
+        const_cast<char *>("(Ljava/lang/String;Ljava/nio/ByteBuffer;)I"),
+        reinterpret_cast<void *>(simulate_key_sequence_snapshot)
+    },
+    {
+        const_cast<char *>("commit_composition_snapshot"),
+        const_cast<char *>("(Ljava/nio/ByteBuffer;)I"),
+        reinterpret_cast<void *>(commit_composition_snapshot)
+    },
+    {
+        const_cast<char *>("clear_composition_snapshot"),
+        const_cast<char *>("(Ljava/nio/ByteBuffer;)I"),
+        reinterpret_cast<void *>(clear_composition_snapshot)
+    },
+    {
+        const_cast<char *>("select_candidate_snapshot"),
+        const_cast<char *>("(ILjava/nio/ByteBuffer;)I"),
+        reinterpret_cast<void *>(select_candidate_snapshot)
+    },
+    {
+        const_cast<char *>("set_caret_pos_snapshot"),
+        const_cast<char *>("(ILjava/nio/ByteBuffer;)I"),
+        reinterpret_cast<void *>(set_caret_pos_snapshot)
     },
     // runtime options
     {
@@ -258,6 +382,52 @@ static const JNINativeMethod sMethods[] = {
         const_cast<char *>("(Ljava/lang/String;Ljava/lang/String;)Ljava/lang/Object;"),
         reinterpret_cast<void *>(schema_get_value)
     },
+    // configuration handles
+    {
+        const_cast<char *>("config_open"),
+        const_cast<char *>("(Ljava/lang/String;)J"),
+        reinterpret_cast<void *>(config_open)
+    },
+    {
+        const_cast<char *>("config_close"),
+        const_cast<char *>("(J)V"),
+        reinterpret_cast<void *>(config_close)
+    },
+    {
+        const_cast<char *>("config_get_keys"),
+        const_cast<char *>("(JLjava/lang/String;)[Ljava/lang/String;"),
+        reinterpret_cast<void *>(config_get_keys)
+    },
+    {
+        const_cast<char *>("config_get_bools"),
+        const_cast<char *>("(J[Ljava/lang/String;Z)[Z"),
+        reinterpret_cast<void *>(config_get_bools)
+    },
+    {
+        const_cast<char *>("config_get_ints"),
+        const_cast<char *>("(J[Ljava/lang/String;I)[I"),
+        reinterpret_cast<void *>(config_get_ints)
+    },
+    {
+        const_cast<char *>("config_get_doubles"),
+        const_cast<char *>("(J[Ljava/lang/String;D)[D"),
+        reinterpret_cast<void *>(config_get_doubles)
+    },
+    {
+        const_cast<char *>("config_get_strings"),
+        const_cast<char *>("(J[Ljava/lang/String;)[Ljava/lang/String;"),
+        reinterpret_cast<void *>(config_get_strings)
+    },
+    {
+        const_cast<char *>("config_get_node"),
+        const_cast<char *>("(JLjava/lang/String;)Ljava/lang/Object;"),
+        reinterpret_cast<void *>(config_get_node)
+    },
+    {
+        const_cast<char *>("config_get_snapshot"),
+        const_cast<char *>("(J[Ljava/lang/String;)[B"),
+        reinterpret_cast<void *>(config_get_snapshot)
+    },
     // customize settings
     {
         const_cast<char *>("customize_bool"),
@@ -383,6 +553,21 @@ static const JNINativeMethod sMethods[] = {
         const_cast<char *>("(Ljava/lang/String;Ljava/lang/String;)Ljava/lang/String;"),
         reinterpret_cast<void *>(opencc_convert)
     },
+    {
+        const_cast<char *>("opencc_convert_many"),
+        const_cast<char *>("([Ljava/lang/String;Ljava/lang/String;)[Ljava/lang/String;"),
+        reinterpret_cast<void *>(opencc_convert_many)
+    },
+    {
+        const_cast<char *>("opencc_convert_buffer"),
+        const_cast<char *>("(Ljava/nio/ByteBuffer;ILjava/nio/ByteBuffer;Ljava/lang/String;)I"),
+        reinterpret_cast<void *>(opencc_convert_buffer)
+    },
+    {
+        const_cast<char *>("opencc_release"),
+        const_cast<char *>("(Ljava/lang/String;)V"),
+        reinterpret_cast<void *>(opencc_release)
+    },
     {
         const_cast<char *>("opencc_convert_dictionary"),
         const_cast<char *>("(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;)V"),
@@ -417,6 +602,22 @@ jint JNI_OnLoad(JavaVM* vm, void* reserved)
     if (vm->GetEnv(reinterpret_cast<void**>(&env), JNI_VERSION_1_6) != JNI_OK) {
         return -1;
     }
+    GlobalRef.vm = vm;
+    if (!init_global_refs(env)) {
+        ALOGE("Unable to resolve JNI class references\n");
+        release_global_refs(env);
+        return -1;
+    }
     registerNativeMethods(env, CLASSNAME, sMethods, NELEMS(sMethods));
     return JNI_VERSION_1_6;
 }
+
+void JNI_OnUnload(JavaVM* vm, void* reserved)
+{
+    JNIEnv* env;
+    if (vm->GetEnv(reinterpret_cast<void**>(&env), JNI_VERSION_1_6) != JNI_OK) {
+        return;
+    }
+    release_interned_strings(env);
+    release_global_refs(env);
+}
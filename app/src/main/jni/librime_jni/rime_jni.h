@@ -19,5 +19,8 @@
 #define BUFSIZE 256
 
 jstring newJstring(JNIEnv* env, const char* pat);
+// like newJstring, but short strings are cached as global references
+jstring internJstring(JNIEnv* env, const char* pat);
+void release_interned_strings(JNIEnv* env);
 
 #endif  // RIME_JNI_H_
@@ -0,0 +1,64 @@
+#ifndef SNAPSHOT_H_
+#define SNAPSHOT_H_
+
+// Layout of the context snapshot written into the direct ByteBuffer owned by
+// Rime.java. Every field is a native-endian int32. The header is followed by a
+// table of (offset, length) pairs, one for each string slot, and then by the
+// UTF-8 string data. Keep in sync with the SNAPSHOT_* constants in Rime.java.
+enum SnapshotHeader {
+  SNAPSHOT_SIZE,  // bytes needed for the whole snapshot
+  SNAPSHOT_FLAGS,
+  SNAPSHOT_COMPOSITION_LENGTH,
+  SNAPSHOT_COMPOSITION_CURSOR_POS,
+  SNAPSHOT_COMPOSITION_SEL_START,
+  SNAPSHOT_COMPOSITION_SEL_END,
+  SNAPSHOT_MENU_PAGE_SIZE,
+  SNAPSHOT_MENU_PAGE_NO,
+  SNAPSHOT_MENU_IS_LAST_PAGE,
+  SNAPSHOT_MENU_HIGHLIGHTED_CANDIDATE_INDEX,
+  SNAPSHOT_MENU_NUM_CANDIDATES,
+  SNAPSHOT_NUM_LABELS,
+  SNAPSHOT_STATUS_BITS,
+  SNAPSHOT_NUM_SLOTS,
+  SNAPSHOT_RESULT,  // return value of the action performed with the snapshot
+  SNAPSHOT_GENERATION,  // bumped whenever context or status changes; Java
+                        // writes -1 into a new buffer to invalidate it
+  // UTF-16 offsets into the preedit, ready for Java strings
+  SNAPSHOT_COMPOSITION_CURSOR_POS_UTF16,
+  SNAPSHOT_COMPOSITION_SEL_START_UTF16,
+  SNAPSHOT_COMPOSITION_SEL_END_UTF16,
+  SNAPSHOT_HEADER_SIZE = 32,  // leaves room for new fields
+};
+
+enum SnapshotFlags {
+  SNAPSHOT_HAS_CONTEXT = 1 << 0,
+  SNAPSHOT_HAS_STATUS = 1 << 1,
+  SNAPSHOT_HAS_COMMIT = 1 << 2,
+  // context and status are the same as in the last snapshot; when there is no
+  // commit either, only SNAPSHOT_FLAGS and SNAPSHOT_RESULT were rewritten
+  SNAPSHOT_UNCHANGED = 1 << 3,
+};
+
+enum SnapshotStatusBits {
+  SNAPSHOT_IS_DISABLED = 1 << 0,
+  SNAPSHOT_IS_COMPOSING = 1 << 1,
+  SNAPSHOT_IS_ASCII_MODE = 1 << 2,
+  SNAPSHOT_IS_FULL_SHAPE = 1 << 3,
+  SNAPSHOT_IS_SIMPLIFIED = 1 << 4,
+  SNAPSHOT_IS_TRADITIONAL = 1 << 5,
+  SNAPSHOT_IS_ASCII_PUNCT = 1 << 6,
+};
+
+// Fixed string slots; candidates follow as (text, comment) pairs and then the
+// select labels.
+enum SnapshotSlots {
+  SNAPSHOT_SLOT_PREEDIT,
+  SNAPSHOT_SLOT_SELECT_KEYS,
+  SNAPSHOT_SLOT_COMMIT_TEXT_PREVIEW,
+  SNAPSHOT_SLOT_SCHEMA_ID,
+  SNAPSHOT_SLOT_SCHEMA_NAME,
+  SNAPSHOT_SLOT_COMMIT_TEXT,
+  SNAPSHOT_SLOT_CANDIDATES,
+};
+
+#endif  // SNAPSHOT_H_